@@ -0,0 +1,84 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generated inputs for the launcher benchmarks.
+ */
+final class BenchmarkFixtures {
+
+	private BenchmarkFixtures(){
+	}
+
+	/**
+	 * Write a main.conf with JAVA_PARAM entries, PATH entries appended to the system PATH and a propertiesFILE
+	 * @param directory - folder for the configuration and its properties file
+	 * @param entries - number of JAVA_PARAM and of path entries
+	 * @return the configuration file
+	 */
+	public static File writeConfig(File directory, int entries) throws IOException{
+		File properties = new File(directory, "paths.properties");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(properties))) {
+			for (int i = 0; i < entries; i++)
+				writer.write("path" + i + "=/opt/merlin/tools/" + i + "/bin\n");
+		}
+
+		File config = new File(directory, "main.conf");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(config))) {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<properties>\n");
+			for (int i = 0; i < entries; i++)
+				writer.write("\t<property name=\"JAVA_PARAM\" value=\"-Dmerlin.benchmark.param" + i + "=value" + i + "\"/>\n");
+			for (int i = 0; i < entries; i++)
+				writer.write("\t<property name=\"PATH\" value=\"/opt/merlin/lib/" + i + "\"" + (i == 0 ? " append=\"true\"" : "") + "/>\n");
+			writer.write("\t<property name=\"JRE\" value=\"java\"/>\n");
+			writer.write("\t<property name=\"JAVAPATH\" value=\"lib/*\"/>\n");
+			writer.write("\t<property name=\"restart\" value=\"10\" unique=\"true\"/>\n");
+			writer.write("\t<propertiesFILE file=\"" + properties.getPath() + "\">\n");
+			for (int i = 0; i < entries; i++)
+				writer.write("\t\t<propertyFILE name=\"LD_LIBRARY_PATH\" value=\"path" + i + "\"/>\n");
+			writer.write("\t</propertiesFILE>\n</properties>\n");
+		}
+		return config;
+	}
+
+	/**
+	 * Create empty files in a folder
+	 * @param directory - folder for the files
+	 * @param prefix - prefix of the file names
+	 * @param suffix - suffix of the file names
+	 * @param count - number of files
+	 */
+	public static void createFiles(File directory, String prefix, String suffix, int count) throws IOException{
+		directory.mkdirs();
+		for (int i = 0; i < count; i++)
+			new File(directory, prefix + i + suffix).createNewFile();
+	}
+
+	/** Delete a folder and everything in it */
+	public static void deleteRecursively(File directory) throws IOException{
+		if(!directory.exists())
+			return;
+
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,24 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the launcher benchmarks, accepting the usual JMH command line options.
+ * <p>Results are always written in JSON, to <code>target/jmh-result.json</code> or to the <code>jmh.result</code> system property.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.resultFormat(ResultFormatType.JSON)
+				.result(System.getProperty("jmh.result", "target/jmh-result.json"))
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,103 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File housekeeping done by the launcher between cycles.
+ * <p>The fixtures are built so that repeated invocations do the same work: the libs to remove are only
+ * truncated and added to the deletion journal, and the log files are recent enough to be kept.
+ * The launcher cache, with that journal, is moved to the temporary folder of the fixtures; <code>conf/logback.xml</code>
+ * is always read from the working directory, so it is only written there when it does not exist, and removed afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LauncherUtilitiesBenchmark {
+
+	private static final int EXTRA_LIBS = 10;
+
+	@Param({"10000"})
+	public int files;
+
+	private File directory;
+	private File lib;
+	private File dependencies;
+	private File logs;
+	private File logbackConfig;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("merlin-bench-files").toFile();
+
+		// Before the launcher classes are loaded, the path of the cache is read once
+		System.setProperty(LauncherUtilities.CACHE_PROPERTY, new File(directory, "launcher").getPath());
+
+		lib = new File(directory, "lib");
+		BenchmarkFixtures.createFiles(lib, "dependency-", ".jar", files);
+		dependencies = new File(directory, "dependenciesfiles");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(dependencies))) {
+			for (int i = 0; i < files - EXTRA_LIBS; i++)
+				writer.write("dependency-" + i + ".jar\n");
+		}
+
+		logs = new File(directory, "logs");
+		BenchmarkFixtures.createFiles(new File(logs, "merlin"), "logFile-", ".log", files);
+
+		// readLogsPathDirectory always reads ./conf/logback.xml
+		File conf = new File("conf");
+		logbackConfig = new File(conf, "logback.xml");
+		if(logbackConfig.exists())
+			logbackConfig = null;
+		else {
+			conf.mkdirs();
+			try (BufferedWriter writer = new BufferedWriter(new FileWriter(logbackConfig))) {
+				writer.write("<configuration>\n\t<appender name=\"FILE\" class=\"ch.qos.logback.core.FileAppender\">\n");
+				writer.write("\t\t<file>.logs/merlin/logFile-${byDay}.log</file>\n\t</appender>\n</configuration>\n");
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkFixtures.deleteRecursively(directory);
+		if(logbackConfig != null)
+			logbackConfig.delete();
+	}
+
+	@Benchmark
+	public void deleteAllFilesExceptInFileList() {
+		LauncherUtilities.deleteAllFilesExceptInFileList(dependencies, lib);
+	}
+
+	@Benchmark
+	public void cleanOldFilesFromDirectory() {
+		LauncherUtilities.cleanOldFilesFromDirectory(new File(logs, "merlin").getPath(), 7);
+	}
+
+	@Benchmark
+	public String readLogsPathDirectory() {
+		return LauncherUtilities.readLogsPathDirectory();
+	}
+}
@@ -0,0 +1,72 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading of main.conf and property appends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesManagerBenchmark {
+
+	@Param({"100", "500"})
+	public int entries;
+
+	private File directory;
+	private File config;
+	private PropertiesManager manager;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("merlin-bench-conf").toFile();
+		config = BenchmarkFixtures.writeConfig(directory, entries);
+		manager = new PropertiesManager(config.getPath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkFixtures.deleteRecursively(directory);
+	}
+
+	@Benchmark
+	public PropertiesManager loadProperties() throws IOException {
+		PropertiesManager propManager = new PropertiesManager(config.getPath());
+		propManager.loadProperties();
+		return propManager;
+	}
+
+	@Benchmark
+	public LaunchConfiguration cachedConfiguration() throws IOException {
+		return LaunchConfiguration.get(config.getPath());
+	}
+
+	@Benchmark
+	public List<String> putPropertyAppends() {
+		manager.setPropertiesDictionary(null);
+		for (int i = 0; i < entries; i++)
+			manager.putProperty("JAVA_PARAM", "-Dmerlin.benchmark.param" + i + "=value" + i);
+		return manager.getJavaArgsOS();
+	}
+}
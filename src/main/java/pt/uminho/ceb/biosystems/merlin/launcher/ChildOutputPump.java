@@ -0,0 +1,133 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the standard output and error of the merlin process on dedicated threads.
+ * <p>The output goes to size rotated log files, rotated again at the start of each cycle, and the last bytes
+ * of both streams are kept in a {@link LogTailBuffer} that can be dumped when the process crashes.
+ * The pipes are always drained, so the process never blocks on a full pipe.
+ */
+final class ChildOutputPump {
+
+	private static final LauncherLog logger = LauncherLog.get(ChildOutputPump.class);
+
+	// Properties of main.conf
+	public static final String LOGPUMP = "logpump";
+	public static final String LOGMAXSIZE = "logMaxSize";
+	public static final String LOGMAXFILES = "logMaxFiles";
+	public static final String LOGTAILSIZE = "logTailSize";
+
+	private static final long DEFAULT_MAX_SIZE = 50;
+	private static final int DEFAULT_MAX_FILES = 5;
+	private static final int DEFAULT_TAIL_SIZE = 4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final RotatingLogFile out;
+	private final RotatingLogFile err;
+	private final LogTailBuffer tail;
+	private final Thread outThread;
+	private final Thread errThread;
+
+	private ChildOutputPump(Process process, RotatingLogFile out, RotatingLogFile err, LogTailBuffer tail){
+		this.out = out;
+		this.err = err;
+		this.tail = tail;
+		this.outThread = pump(process.getInputStream(), out, "merlin-stdout");
+		this.errThread = pump(process.getErrorStream(), err, "merlin-stderr");
+	}
+
+	/** @return true if the configuration enables the log pump */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return Boolean.parseBoolean(config.getProperty(LOGPUMP));
+	}
+
+	/**
+	 * Rotate the logs of the previous cycle and start reading the output of the process
+	 * @param process - merlin process, started without output redirection
+	 * @param config - launch configuration with the log limits
+	 * @param log - file for the standard output
+	 * @param logError - file for the standard error
+	 * @return the running pump
+	 * @throws IOException if the log files can not be created
+	 */
+	public static ChildOutputPump start(Process process, LaunchConfiguration config, String log, String logError) throws IOException{
+		long maxSize = getLong(config, LOGMAXSIZE, DEFAULT_MAX_SIZE) * 1024 * 1024;
+		int maxFiles = (int) getLong(config, LOGMAXFILES, DEFAULT_MAX_FILES);
+		int tailSize = (int) getLong(config, LOGTAILSIZE, DEFAULT_TAIL_SIZE) * 1024 * 1024;
+
+		RotatingLogFile out = new RotatingLogFile(new File(log), maxSize, maxFiles);
+		RotatingLogFile err = new RotatingLogFile(new File(logError), maxSize, maxFiles);
+		out.open();
+		err.open();
+
+		return new ChildOutputPump(process, out, err, new LogTailBuffer(tailSize));
+	}
+
+	private static long getLong(LaunchConfiguration config, String property, long defaultValue){
+		String value = config.getProperty(property);
+		try {
+			if(value != null)
+				return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", property, "value", value);
+		}
+		return defaultValue;
+	}
+
+	private Thread pump(final InputStream in, final RotatingLogFile file, String name){
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				try {
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						file.write(buffer, 0, read);
+						tail.write(buffer, 0, read);
+
+						// Nothing else is waiting in the pipe, make the output visible
+						if(in.available() == 0)
+							file.flush();
+					}
+				}
+				catch (IOException e) {
+					// Pipe closed
+				}
+				finally {
+					file.flush();
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/** Wait until both streams are closed by the exited process and close the log files */
+	public void await() throws InterruptedException{
+		outThread.join();
+		errThread.join();
+		out.close();
+		err.close();
+
+		long dropped = out.getDropped() + err.getDropped();
+		if(dropped > 0)
+			logger.warn("output.dropped", "bytes", dropped);
+	}
+
+	/**
+	 * Write the last output of the process to a file
+	 * @param file - destination file
+	 */
+	public void dumpTail(File file){
+		try {
+			tail.dump(file);
+			logger.info("output.tail.saved", "file", file.getPath());
+		} catch (IOException e) {
+			logger.warn("output.tail.failed", e, "file", file.getPath());
+		}
+	}
+}
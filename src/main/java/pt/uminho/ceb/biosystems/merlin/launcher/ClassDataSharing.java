@@ -0,0 +1,147 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Manages the dynamic AppCDS archive of the merlin process.
+ * <p>The first launch is a training run that dumps the loaded classes with <code>-XX:ArchiveClassesAtExit</code>,
+ * later launches map that archive with <code>-XX:SharedArchiveFile</code>. The archive is created again whenever
+ * <code>lib/</code>, the plugins folder, the JRE or the JAVA_PARAM set change.
+ */
+final class ClassDataSharing {
+
+	private static final LauncherLog logger = LauncherLog.get(ClassDataSharing.class);
+
+	// Property of main.conf: auto (train and reuse the archive) or off
+	public static final String CDS = "cds";
+	public static final String AUTO = "auto";
+
+	private static final String DIRECTORY = "cds";
+	private static final String ARCHIVE = "merlin.jsa";
+	private static final String KEY = "merlin.key";
+
+	private ClassDataSharing(){
+	}
+
+	/** @return the archive file, it may not exist */
+	public static File getArchiveFile(){
+		return new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), ARCHIVE);
+	}
+
+	/**
+	 * Get the JVM arguments that create or use the archive for the next launch
+	 * @param config - launch configuration
+	 * @param classpath - classpath of the merlin process
+	 * @param pluginsBin - folder with the installed plugins
+	 * @return the arguments to add to the command, empty if the archive should not be used
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config, String classpath, String pluginsBin){
+		return getJavaArgs(config, classpath, pluginsBin, true);
+	}
+
+	/**
+	 * Get the JVM arguments that create or use the archive for the next launch
+	 * @param config - launch configuration
+	 * @param classpath - classpath of the merlin process
+	 * @param pluginsBin - folder with the installed plugins
+	 * @param training - false if the process can only use an up to date archive, not create it
+	 * @return the arguments to add to the command, empty if the archive should not be used
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config, String classpath, String pluginsBin, boolean training){
+
+		if(!AUTO.equalsIgnoreCase(config.getProperty(CDS)))
+			return Collections.emptyList();
+
+		// The user turned sharing off or is managing the archives by hand; -Xshare:auto and -Xshare:on still use ours
+		for (String arg : config.getJavaArgsOS())
+			if(arg.equals("-Xshare:off") || arg.startsWith("-XX:SharedArchiveFile") || arg.startsWith("-XX:ArchiveClassesAtExit"))
+				return Collections.emptyList();
+
+		JreCapabilities jre = JreCapabilities.of(config.getJRE());
+		if(!jre.supportsDynamicArchive())
+			return Collections.emptyList();
+
+		File directory = LauncherUtilities.getCacheDirectory(DIRECTORY);
+		File archive = new File(directory, ARCHIVE);
+		File keyFile = new File(directory, KEY);
+
+		try {
+			String key = computeKey(config, jre, classpath, pluginsBin);
+
+			if(archive.isFile() && keyFile.isFile() && key.equals(new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8)))
+				return Collections.singletonList("-XX:SharedArchiveFile=" + archive.getPath());
+
+			// Several processes writing the same archive would corrupt it
+			if(!training)
+				return Collections.emptyList();
+
+			// Inputs changed (or first run), the stale archive is replaced by a new training run
+			Files.deleteIfExists(archive.toPath());
+			Files.write(keyFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+			logger.info("cds.training", "archive", archive.getPath());
+			return Collections.singletonList("-XX:ArchiveClassesAtExit=" + archive.getPath());
+		}
+		catch (IOException e) {
+			logger.warn("cds.disabled", "error", e.getMessage());
+		}
+		return Collections.emptyList();
+	}
+
+	/** Digest of everything the archive depends on */
+	private static String computeKey(LaunchConfiguration config, JreCapabilities jre, String classpath, String pluginsBin) throws IOException{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		update(digest, config.getJRE());
+		update(digest, String.valueOf(jre.getMajorVersion()));
+		for (String arg : config.getJavaArgsOS())
+			update(digest, arg);
+		update(digest, classpath);
+		updateTree(digest, new File("lib"));
+		updateTree(digest, new File(pluginsBin));
+
+		return LauncherUtilities.toHex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value){
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/** Add the relative path, size and modification time of every file in the folder */
+	private static void updateTree(final MessageDigest digest, File folder) throws IOException{
+		if(!folder.isDirectory())
+			return;
+
+		final Path root = folder.toPath();
+		final List<String> entries = new ArrayList<String>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				entries.add(root.relativize(file) + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		// Listing order is not specified
+		Collections.sort(entries);
+		for (String entry : entries)
+			update(digest, entry);
+	}
+}
@@ -0,0 +1,205 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Explicit, ordered classpath of the merlin process, built from the JAVAPATH property.
+ * <p>Wildcard entries (<code>lib/*</code>) are expanded to the jars of the folder sorted by name, so the order no longer
+ * depends on the file system, as class data sharing requires. The expansion is saved in the launcher cache and only
+ * done again when the listing of a wildcard folder or <code>conf/dependenciesfiles</code> change.
+ * JRE 9+ read the classpath from an <code>@argfile</code>, older JRE get it in the command line.
+ * The jars can also be replaced by the uncompressed copies of {@link JarRepacker}.
+ */
+final class ClasspathCache {
+
+	private static final LauncherLog logger = LauncherLog.get(ClasspathCache.class);
+
+	// Property of main.conf, the classpath is precomputed unless it is false
+	public static final String PRECOMPUTEDCLASSPATH = "precomputedclasspath";
+
+	private static final String DIRECTORY = "classpath";
+	private static final String KEY_FILE = "classpath.key";
+	private static final String LIST_FILE = "classpath.txt";
+	private static final String ARG_FILE = "classpath.args";
+
+	private static final String DEPENDENCIESFILE = "conf/dependenciesfiles";
+
+	// Windows can not start a process with a longer command line
+	private static final int MAX_COMMAND_CLASSPATH = 30000;
+
+	// Last classpath built by the launcher
+	private static volatile ClasspathCache last;
+
+	private final String key;
+	private final List<String> entries;
+
+	private ClasspathCache(String key, List<String> entries){
+		this.key = key;
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/** @return true unless the configuration disables the precomputed classpath */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return !"false".equalsIgnoreCase(config.getProperty(PRECOMPUTEDCLASSPATH));
+	}
+
+	/**
+	 * Get the expanded classpath, building it again only if its inputs changed
+	 * @param javaPath - classpath with wildcards, as in the JAVAPATH property
+	 * @return the expanded classpath
+	 */
+	public static synchronized ClasspathCache get(String javaPath) throws IOException{
+		String key = computeKey(javaPath);
+
+		File directory = LauncherUtilities.getCacheDirectory(DIRECTORY);
+		File keyFile = new File(directory, KEY_FILE);
+		File listFile = new File(directory, LIST_FILE);
+		boolean saved = keyFile.isFile() && listFile.isFile();
+
+		ClasspathCache classpath = last;
+		if(saved && classpath != null && classpath.key.equals(key))
+			return classpath;
+
+		if(saved && key.equals(new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8)))
+			classpath = new ClasspathCache(key, Files.readAllLines(listFile.toPath(), StandardCharsets.UTF_8));
+		else {
+			classpath = new ClasspathCache(key, expand(javaPath));
+			classpath.save(directory);
+			logger.info("classpath.built", "entries", classpath.entries.size());
+		}
+
+		last = classpath;
+		return classpath;
+	}
+
+	/** Digest of the JAVAPATH, the modification time of each wildcard folder and of the dependencies file */
+	private static String computeKey(String javaPath) throws IOException{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		StringBuilder inputs = new StringBuilder(javaPath);
+		for (String entry : javaPath.split(File.pathSeparator)) {
+			File folder = getWildcardFolder(entry);
+			if(folder != null)
+				inputs.append('\n').append(folder.getPath()).append('|').append(folder.lastModified());
+		}
+		File dependencies = new File(DEPENDENCIESFILE);
+		inputs.append('\n').append(dependencies.lastModified()).append('|').append(dependencies.length());
+
+		return LauncherUtilities.toHex(digest.digest(inputs.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** @return the folder of a wildcard entry (<code>dir/*</code> or <code>*</code>), null for other entries */
+	static File getWildcardFolder(String entry){
+		if(entry.equals("*"))
+			return new File(".");
+		if(entry.endsWith("/*") || entry.endsWith(File.separator + "*"))
+			return new File(entry.substring(0, entry.length() - 2));
+		return null;
+	}
+
+	/** Expand the wildcards as the JVM does (jar files of the folder, not recursive), in name order */
+	private static List<String> expand(String javaPath){
+		List<String> entries = new ArrayList<String>();
+		for (String entry : javaPath.split(File.pathSeparator)) {
+			if(entry.isEmpty())
+				continue;
+
+			File folder = getWildcardFolder(entry);
+			if(folder == null){
+				entries.add(entry);
+				continue;
+			}
+
+			String[] jars = folder.list(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".jar") || name.endsWith(".JAR");
+				}
+			});
+			if(jars == null)
+				continue;
+
+			Arrays.sort(jars);
+			for (String jar : jars)
+				entries.add(entry.equals("*") ? jar : new File(folder, jar).getPath());
+		}
+		return entries;
+	}
+
+	private void save(File directory) throws IOException{
+		Files.write(new File(directory, LIST_FILE).toPath(), entries, StandardCharsets.UTF_8);
+
+		// Written last, an interrupted save is built again on the next launch
+		Files.write(new File(directory, KEY_FILE).toPath(), key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get this classpath with the jars replaced by their uncompressed copies, repacking the ones that changed
+	 * @return the classpath of the copies
+	 */
+	public ClasspathCache repack() throws IOException{
+		return new ClasspathCache(key, JarRepacker.sync(entries));
+	}
+
+	/** Write the argfile, unless it already has this classpath */
+	private static synchronized File writeArgFile(String classpath) throws IOException{
+		File argFile = new File(LauncherUtilities.getCacheDirectory(DIRECTORY), ARG_FILE);
+		List<String> lines = Arrays.asList("-cp", quote(classpath));
+		if(!argFile.isFile() || !lines.equals(Files.readAllLines(argFile.toPath(), StandardCharsets.UTF_8)))
+			Files.write(argFile.toPath(), lines, StandardCharsets.UTF_8);
+		return argFile;
+	}
+
+	/** Quote an argument of an argfile, where backslashes are escape characters */
+	private static String quote(String argument){
+		return "\"" + argument.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/** @return the classpath entries in order */
+	public List<String> getEntries() {
+		return entries;
+	}
+
+	/** @return the classpath entries joined with the path separator */
+	public String getClasspath(){
+		StringBuilder classpath = new StringBuilder();
+		for (String entry : entries) {
+			if(classpath.length() > 0)
+				classpath.append(File.pathSeparator);
+			classpath.append(entry);
+		}
+		return classpath.toString();
+	}
+
+	/**
+	 * Get the JVM arguments that set the classpath
+	 * @param jre - capabilities of the JRE that will run merlin
+	 * @param javaPath - classpath with wildcards, used if the expanded one is too long for the command line
+	 * @return the arguments to add to the command
+	 */
+	public List<String> getJavaArgs(JreCapabilities jre, String javaPath) throws IOException{
+		// Argument files are supported since JDK 9
+		if(jre.getMajorVersion() >= 9)
+			return Collections.singletonList("@" + writeArgFile(getClasspath()).getPath());
+
+		String classpath = getClasspath();
+		if(PropertiesManager.detectOS().equals(OSystem.WINDOWS) && classpath.length() > MAX_COMMAND_CLASSPATH)
+			classpath = javaPath;
+		return Arrays.asList("-cp", classpath);
+	}
+}
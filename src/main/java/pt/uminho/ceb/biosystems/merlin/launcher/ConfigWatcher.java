@@ -0,0 +1,155 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the inputs of the launch plan while merlin runs, so the plan of the next start is computed
+ * as soon as they change instead of after merlin exits.
+ * <p>Files are watched through their folder, folders are watched for entries added, removed or changed
+ * (not recursively). Bursts of events, like a plugin install, are reported once after they settle.
+ */
+final class ConfigWatcher implements Closeable {
+
+	private static final LauncherLog logger = LauncherLog.get(ConfigWatcher.class);
+
+	// Property of main.conf, the inputs are watched unless it is false
+	public static final String CONFIGWATCHER = "configwatcher";
+
+	private static final long SETTLE_MILLIS = 200;
+
+	private final Set<File> inputs;
+	private final Set<Path> files = new HashSet<Path>();
+	private final Set<Path> folders = new HashSet<Path>();
+	private final WatchService service;
+	private final Runnable onChange;
+
+	private ConfigWatcher(Collection<File> inputs, Runnable onChange) throws IOException{
+		this.inputs = new HashSet<File>(inputs);
+		this.onChange = onChange;
+		this.service = FileSystems.getDefault().newWatchService();
+
+		for (File input : inputs) {
+			Path path = input.getAbsoluteFile().toPath().normalize();
+			if(Files.isDirectory(path))
+				folders.add(path);
+			else
+				files.add(path);
+		}
+	}
+
+	/** @return true unless the configuration disables the watcher */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return !"false".equalsIgnoreCase(config.getProperty(CONFIGWATCHER));
+	}
+
+	/**
+	 * Start watching
+	 * @param inputs - files and folders to watch
+	 * @param onChange - called in the watcher thread after any of them changes
+	 * @return the watcher, to close when no longer needed
+	 */
+	public static ConfigWatcher start(Collection<File> inputs, Runnable onChange) throws IOException{
+		final ConfigWatcher watcher = new ConfigWatcher(inputs, onChange);
+		watcher.register();
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watcher.watch();
+			}
+		}, "merlin-config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return watcher;
+	}
+
+	/** @return true if this watcher watches exactly these files and folders */
+	public boolean watches(Collection<File> inputs){
+		return this.inputs.equals(new HashSet<File>(inputs));
+	}
+
+	/** Register the folders that exist, again after each change since watched folders may have been created */
+	private void register(){
+		for (Path path : new HashSet<Path>(files))
+			if(Files.isDirectory(path)) {
+				files.remove(path);
+				folders.add(path);
+			}
+
+		// Folders that do not exist yet are watched through their parent, like files
+		Set<Path> directories = new HashSet<Path>(folders);
+		for (Path path : files)
+			directories.add(path.getParent());
+
+		for (Path directory : directories) {
+			if(directory == null || !Files.isDirectory(directory))
+				continue;
+			try {
+				directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			catch (IOException e) {
+				logger.warn("watcher.register.failed", "folder", directory, "error", e.getMessage());
+			}
+		}
+	}
+
+	private void watch(){
+		try {
+			while(true) {
+				if(!isRelevant(service.take()))
+					continue;
+
+				// Wait for the burst to end
+				WatchKey key;
+				while((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+					isRelevant(key);
+
+				register();
+				onChange.run();
+			}
+		}
+		catch (ClosedWatchServiceException | InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/** Consume the events of a key and check if any of them concerns a watched input */
+	private boolean isRelevant(WatchKey key){
+		Path directory = (Path) key.watchable();
+		boolean relevant = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW || folders.contains(directory)) {
+				relevant = true;
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			relevant |= files.contains(path) || folders.contains(path);
+		}
+		key.reset();
+		return relevant;
+	}
+
+	@Override
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			logger.warn("watcher.close.failed", e);
+		}
+	}
+}
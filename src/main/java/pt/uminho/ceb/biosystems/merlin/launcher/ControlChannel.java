@@ -0,0 +1,299 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped file shared by the launcher and the merlin process, so merlin can report its state and ask for
+ * things without exiting.
+ * <p>Merlin finds the file in <code>MERLIN_CONTROL_FILE</code> and writes to it with {@link ControlClient}: heartbeats,
+ * its phase and progress, and requests (restart after the current job, a bigger heap for the next start). The launcher
+ * polls the mapped buffer, which needs no system call, reports the phases and the requests, and detects a process that
+ * stopped sending heartbeats; with <code>controlHangPolicy=restart</code> the process is terminated and started again.
+ * The channel is off unless <code>controlchannel=true</code>.
+ * <p>Plain accesses to the mapped buffer may be reordered by the JIT or the CPU, so the sequence numbers only tell
+ * the reader to try again: the status and each request also carry a CRC32 of their fields, and a record whose
+ * checksum does not match is read again later.
+ * <p>Layout, big-endian:
+ * <pre>
+ *   0 int   magic            16 long status sequence (odd while merlin writes the status)
+ *   4 int   version          24 long heartbeat (epoch milliseconds)
+ *   8 long  generation       32 int  progress (per mille, -1 unknown)
+ *                            36 int  length of the phase, 40 byte[56] phase (UTF-8)
+ *  96 long  requests written by merlin
+ * 104 long  requests read by the launcher
+ * 112 long  CRC32 of the status (heartbeat, progress, length and phase)
+ * 128 ring of 16 requests of 32 bytes: long sequence (written last), int type, int CRC32 of the other fields,
+ *          long value, long time
+ * </pre>
+ */
+final class ControlChannel implements Runnable {
+
+	private static final LauncherLog logger = LauncherLog.get(ControlChannel.class);
+
+	// Properties of main.conf
+	public static final String CONTROLCHANNEL = "controlchannel";
+	public static final String CONTROLPOLLMILLIS = "controlPollMillis";
+	public static final String CONTROLHANGSECONDS = "controlHangSeconds";
+	public static final String CONTROLHANGPOLICY = "controlHangPolicy";
+
+	// Environment variable with the path of the file, read by merlin
+	public static final String ENVIRONMENT = "MERLIN_CONTROL_FILE";
+
+	static final int MAGIC = 0x4D4C4354;
+	static final int VERSION = 2;
+	static final int SIZE = 4096;
+
+	static final int GENERATION = 8;
+	static final int STATUS_SEQUENCE = 16;
+	static final int HEARTBEAT = 24;
+	static final int PROGRESS = 32;
+	static final int PHASE_LENGTH = 36;
+	static final int PHASE = 40;
+	static final int PHASE_MAX = 56;
+	static final int REQUESTS_WRITTEN = 96;
+	static final int REQUESTS_READ = 104;
+	static final int STATUS_CHECKSUM = 112;
+	static final int RING = 128;
+	static final int RING_SLOTS = 16;
+	static final int RECORD = 32;
+
+	// Types of request
+	static final int REQUEST_RESTART_AFTER_JOB = 1;
+	static final int REQUEST_HEAP_MB = 2;
+
+	private static final String DIRECTORY = "control";
+	private static final long DEFAULT_POLL = 500;
+	private static final long DEFAULT_HANG = 300;
+	private static final int STATUS_ATTEMPTS = 100;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+
+	// State of the current process, written by the polling thread
+	private Process process;
+	private long interval;
+	private long hangMillis;
+	private boolean hangRestart;
+	private Thread thread;
+	private String phase;
+	private int progress;
+	private boolean hung;
+	private volatile boolean restartRequested;
+	private volatile boolean restartAfterJob;
+	private volatile long heapRequest;
+
+	private ControlChannel(File file, MappedByteBuffer buffer){
+		this.file = file;
+		this.buffer = buffer;
+	}
+
+	/** @return true if the configuration enables the control channel */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return "true".equalsIgnoreCase(config.getProperty(CONTROLCHANNEL));
+	}
+
+	/**
+	 * Map the control file of a session, kept for all its cycles
+	 * @param name - name of the file in the launcher cache
+	 * @return the channel, null if the file can not be mapped
+	 */
+	public static ControlChannel open(String name){
+		File file = new File(LauncherUtilities.getCacheDirectory(DIRECTORY), name).getAbsoluteFile();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			return new ControlChannel(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE));
+		}
+		catch (IOException e) {
+			logger.warn("control.open.failed", "file", file, "error", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Clear the file for a new merlin process, before it starts
+	 * @param builder - builder of the process, its environment gets the path of the file; null for a standby process,
+	 * started with it and not yet released
+	 */
+	public void reset(ProcessBuilder builder){
+		for (int i = 0; i < RING + RING_SLOTS * RECORD; i += 8)
+			buffer.putLong(i, 0);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(GENERATION, System.currentTimeMillis());
+		buffer.putInt(PROGRESS, -1);
+		buffer.putInt(0, MAGIC);
+
+		if(builder != null)
+			setEnvironment(builder);
+	}
+
+	/** @param builder - builder of a merlin process, its environment gets the path of the file */
+	public void setEnvironment(ProcessBuilder builder){
+		builder.environment().put(ENVIRONMENT, file.getPath());
+	}
+
+	/**
+	 * Start polling the file while the process runs
+	 * @param process - merlin process
+	 * @param config - launch configuration
+	 */
+	public void start(Process process, LaunchConfiguration config){
+		this.process = process;
+		this.interval = Math.max(10, getLong(config, CONTROLPOLLMILLIS, DEFAULT_POLL));
+		this.hangMillis = getLong(config, CONTROLHANGSECONDS, DEFAULT_HANG) * 1000;
+		this.hangRestart = ResourceSupervisor.POLICY_RESTART.equalsIgnoreCase(config.getProperty(CONTROLHANGPOLICY));
+		this.phase = null;
+		this.progress = -1;
+		this.hung = false;
+		this.restartRequested = false;
+		this.restartAfterJob = false;
+		this.heapRequest = 0;
+
+		thread = new Thread(this, "merlin-control-channel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static long getLong(LaunchConfiguration config, String property, long defaultValue){
+		String value = config.getProperty(property);
+		try {
+			if(value != null)
+				return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", property, "value", value);
+		}
+		return defaultValue;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(process.isAlive()) {
+				poll();
+				Thread.sleep(interval);
+			}
+		}
+		catch (InterruptedException e) {
+			// Process exited
+		}
+		// Requests written just before the exit
+		poll();
+	}
+
+	private void poll(){
+		readStatus();
+		readRequests();
+	}
+
+	/** Read the status written by merlin, again if merlin was writing it */
+	private void readStatus(){
+		long heartbeat = 0;
+		int progress = -1;
+		String phase = null;
+		for (int attempt = 0; attempt < STATUS_ATTEMPTS && phase == null; attempt++) {
+			long sequence = buffer.getLong(STATUS_SEQUENCE);
+			if((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			long currentHeartbeat = buffer.getLong(HEARTBEAT);
+			int currentProgress = buffer.getInt(PROGRESS);
+			int currentLength = buffer.getInt(PHASE_LENGTH);
+			int length = Math.max(0, Math.min(PHASE_MAX, currentLength));
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++)
+				bytes[i] = buffer.get(PHASE + i);
+			long checksum = buffer.getLong(STATUS_CHECKSUM);
+			// The checksum rejects a status torn by reordered accesses, that the sequence alone may not show
+			if(buffer.getLong(STATUS_SEQUENCE) == sequence
+					&& checksum == ControlClient.statusChecksum(currentHeartbeat, currentProgress, currentLength, bytes)) {
+				heartbeat = currentHeartbeat;
+				progress = currentProgress;
+				phase = new String(bytes, StandardCharsets.UTF_8);
+			}
+		}
+		// Merlin stopped in the middle of writing the status, or never wrote it
+		if(phase == null)
+			return;
+
+		if(!phase.isEmpty() && !phase.equals(this.phase))
+			logger.info("child.phase", "phase", phase, "progress", progress < 0 ? "unknown" : progress / 10.0 + "%");
+		else if(progress != this.progress)
+			logger.debug("child.progress", "phase", phase, "progress", progress / 10.0 + "%");
+		this.phase = phase;
+		this.progress = progress;
+
+		// Only a process that sent a heartbeat is expected to send the next ones
+		if(heartbeat <= 0 || hangMillis <= 0)
+			return;
+		long silence = System.currentTimeMillis() - heartbeat;
+		if(silence <= hangMillis) {
+			if(hung)
+				logger.info("child.resumed", "phase", phase);
+			hung = false;
+		}
+		else if(!hung) {
+			hung = true;
+			logger.warn("child.hang", "seconds", silence / 1000, "phase", phase, "policy", hangRestart ? "restart" : "warn");
+			if(hangRestart && !restartRequested) {
+				restartRequested = true;
+				process.destroy();
+			}
+		}
+	}
+
+	/** Consume the requests written by merlin since the last poll */
+	private void readRequests(){
+		long read = buffer.getLong(REQUESTS_READ);
+		long written = buffer.getLong(REQUESTS_WRITTEN);
+		while(read < written) {
+			int record = RING + (int) (read % RING_SLOTS) * RECORD;
+			long sequence = buffer.getLong(record);
+			int type = buffer.getInt(record + 8);
+			int checksum = buffer.getInt(record + 12);
+			long value = buffer.getLong(record + 16);
+			long time = buffer.getLong(record + 24);
+			// Not complete yet, read on the next poll
+			if(sequence != read + 1 || checksum != ControlClient.requestChecksum(sequence, type, value, time))
+				break;
+			read++;
+			buffer.putLong(REQUESTS_READ, read);
+
+			if(type == REQUEST_RESTART_AFTER_JOB) {
+				restartAfterJob = true;
+				logger.info("child.request", "type", "restart_after_job");
+			}
+			else if(type == REQUEST_HEAP_MB) {
+				heapRequest = Math.max(heapRequest, value);
+				logger.info("child.request", "type", "heap", "heap_mb", value);
+			}
+			else
+				logger.warn("child.request.unknown", "type", type, "value", value);
+		}
+	}
+
+	/** Stop polling, after reading the last requests of the process */
+	public void stop() throws InterruptedException{
+		thread.interrupt();
+		thread.join();
+	}
+
+	/** @return true if the process was terminated because it stopped sending heartbeats */
+	public boolean isRestartRequested() {
+		return restartRequested;
+	}
+
+	/** @return true if merlin asked to be started again once it exits */
+	public boolean isRestartAfterJob() {
+		return restartAfterJob;
+	}
+
+	/** @return the heap merlin asked for its next start in MB, 0 if none */
+	public long getHeapRequest() {
+		return heapRequest;
+	}
+}
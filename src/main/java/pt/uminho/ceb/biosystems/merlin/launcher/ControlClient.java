@@ -0,0 +1,171 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Side of merlin of the control channel with the launcher (see {@link ControlChannel} for the layout of the file).
+ * <p>Merlin gets the client with {@link #get()}, null when it was not started by a launcher with the channel, and
+ * reports its phase and progress, sends heartbeats (or starts a thread that sends them) and queues requests.
+ * Writes are memory writes to the mapped file, cheap enough to report progress from a loop; each record is written
+ * with its CRC32, so the launcher never accepts a record it read while it was being written.
+ */
+public final class ControlClient {
+
+	private static ControlClient client;
+	private static boolean opened;
+
+	private final MappedByteBuffer buffer;
+	private long sequence;
+	private long written;
+
+	// Status last written, the heartbeat and the progress rewrite it with the same phase
+	private int progress = -1;
+	private byte[] phase = new byte[0];
+
+	private ControlClient(MappedByteBuffer buffer){
+		this.buffer = buffer;
+		this.sequence = buffer.getLong(ControlChannel.STATUS_SEQUENCE);
+		this.written = buffer.getLong(ControlChannel.REQUESTS_WRITTEN);
+	}
+
+	/** @return the client of the control channel of this process, null if the launcher did not provide one */
+	public static synchronized ControlClient get(){
+		if(opened)
+			return client;
+		opened = true;
+
+		String path = System.getenv(ControlChannel.ENVIRONMENT);
+		if(path == null || !new File(path).isFile())
+			return null;
+
+		try (RandomAccessFile raf = new RandomAccessFile(path, "rw"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, ControlChannel.SIZE);
+			if(buffer.getInt(0) == ControlChannel.MAGIC && buffer.getInt(4) == ControlChannel.VERSION)
+				client = new ControlClient(buffer);
+		}
+		catch (IOException e) {
+			// Without the channel merlin runs as before
+		}
+		return client;
+	}
+
+	/** Tell the launcher this process is alive */
+	public synchronized void heartbeat(){
+		writeStatus();
+	}
+
+	/**
+	 * Report the phase of merlin, also a heartbeat
+	 * @param phase - name of the phase, cut to 56 bytes
+	 * @param progress - progress of the phase in per mille, -1 if unknown
+	 */
+	public synchronized void setPhase(String phase, int progress){
+		byte[] bytes = phase.getBytes(StandardCharsets.UTF_8);
+		this.phase = bytes.length > ControlChannel.PHASE_MAX ? Arrays.copyOf(bytes, ControlChannel.PHASE_MAX) : bytes;
+		this.progress = progress;
+		writeStatus();
+	}
+
+	/**
+	 * Report the progress of the current phase, also a heartbeat
+	 * @param progress - progress in per mille, -1 if unknown
+	 */
+	public synchronized void setProgress(int progress){
+		this.progress = progress;
+		writeStatus();
+	}
+
+	private void writeStatus(){
+		long heartbeat = System.currentTimeMillis();
+
+		// Odd while writing, the launcher reads again; the checksum catches what the sequence misses
+		buffer.putLong(ControlChannel.STATUS_SEQUENCE, ++sequence);
+		buffer.putLong(ControlChannel.HEARTBEAT, heartbeat);
+		buffer.putInt(ControlChannel.PROGRESS, progress);
+		for (int i = 0; i < phase.length; i++)
+			buffer.put(ControlChannel.PHASE + i, phase[i]);
+		buffer.putInt(ControlChannel.PHASE_LENGTH, phase.length);
+		buffer.putLong(ControlChannel.STATUS_CHECKSUM, statusChecksum(heartbeat, progress, phase.length, phase));
+		buffer.putLong(ControlChannel.STATUS_SEQUENCE, ++sequence);
+	}
+
+	/**
+	 * Ask the launcher to start merlin again once this process exits, whatever its exit code
+	 * @return false if the launcher did not read the previous requests yet
+	 */
+	public boolean requestRestartAfterJob(){
+		return request(ControlChannel.REQUEST_RESTART_AFTER_JOB, 0);
+	}
+
+	/**
+	 * Ask the launcher for a bigger heap on the next start
+	 * @param megabytes - maximum heap, within the limits of the heap sizing
+	 * @return false if the launcher did not read the previous requests yet
+	 */
+	public boolean requestHeap(long megabytes){
+		return request(ControlChannel.REQUEST_HEAP_MB, megabytes);
+	}
+
+	private synchronized boolean request(int type, long value){
+		// Full ring
+		if(written - buffer.getLong(ControlChannel.REQUESTS_READ) >= ControlChannel.RING_SLOTS)
+			return false;
+
+		int record = ControlChannel.RING + (int) (written % ControlChannel.RING_SLOTS) * ControlChannel.RECORD;
+		long time = System.currentTimeMillis();
+		buffer.putInt(record + 8, type);
+		buffer.putInt(record + 12, requestChecksum(written + 1, type, value, time));
+		buffer.putLong(record + 16, value);
+		buffer.putLong(record + 24, time);
+		// The sequence and the checksum mark the record as complete
+		buffer.putLong(record, written + 1);
+		buffer.putLong(ControlChannel.REQUESTS_WRITTEN, ++written);
+		return true;
+	}
+
+	/** @return the CRC32 of the fields of the status, also checked by the launcher */
+	static long statusChecksum(long heartbeat, int progress, int length, byte[] phase){
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(16).putLong(heartbeat).putInt(progress).putInt(length).array());
+		crc.update(phase, 0, Math.max(0, Math.min(phase.length, length)));
+		return crc.getValue();
+	}
+
+	/** @return the CRC32 of the fields of a request */
+	static int requestChecksum(long sequence, int type, long value, long time){
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(28).putLong(sequence).putInt(type).putLong(value).putLong(time).array());
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Send heartbeats from a daemon thread
+	 * @param intervalMillis - time between heartbeats, well below the <code>controlHangSeconds</code> of the launcher
+	 */
+	public void startHeartbeat(final long intervalMillis){
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						heartbeat();
+						Thread.sleep(intervalMillis);
+					}
+				}
+				catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		}, "merlin-control-heartbeat");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
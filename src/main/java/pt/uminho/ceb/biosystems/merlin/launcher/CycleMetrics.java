@@ -0,0 +1,163 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duration of the phases of each launch/restart cycle, measured with {@link System#nanoTime()}.
+ * <p>Each cycle is appended as a JSON line to <code>launcher-metrics.jsonl</code>, and the histograms of all the cycles
+ * run by this launcher are written in the Prometheus text format to <code>launcher-metrics.prom</code>.
+ */
+final class CycleMetrics {
+
+	private static final LauncherLog logger = LauncherLog.get(CycleMetrics.class);
+
+	// Property of main.conf, metrics are written unless it is false
+	public static final String METRICS = "metrics";
+
+	public static final String CONFIG_LOAD = "config_load";
+	public static final String DELETE_EXTRA_FILES = "delete_extra_files";
+	public static final String DELETE_PROPERTY_FILES = "delete_property_files";
+	public static final String PROCESS_START = "process_start";
+	public static final String CHILD_LIFETIME = "child_lifetime";
+	public static final String PLUGIN_INSTALL = "plugin_install";
+	public static final String LIB_PRUNING = "lib_pruning";
+	public static final String LOG_RETENTION = "log_retention";
+	public static final String DEFERRED_DELETIONS = "deferred_deletions";
+	public static final String JOURNAL_REPLAY = "journal_replay";
+	public static final String POST_EXIT = "post_exit";
+
+	private static final String DIRECTORY = "metrics";
+	private static final String JSON_FILE = "launcher-metrics.jsonl";
+	private static final String PROMETHEUS_FILE = "launcher-metrics.prom";
+
+	// Upper bounds of the histogram buckets, in seconds
+	private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60, 300, 3600};
+
+	// Histograms of all the cycles <Phase, Histogram>
+	private static final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+	private static int cycles;
+
+	// Phases of the current cycle <Phase, Duration in nanoseconds>
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+	private final long cycleStart = System.nanoTime();
+
+	private static final class Histogram {
+		private final long[] counts = new long[BUCKETS.length];
+		private long count;
+		private double sum;
+
+		private void observe(double seconds){
+			for (int i = 0; i < BUCKETS.length; i++)
+				if(seconds <= BUCKETS[i])
+					counts[i]++;
+			count++;
+			sum += seconds;
+		}
+	}
+
+	/** @return true unless the configuration disables the metrics */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return !"false".equalsIgnoreCase(config.getProperty(METRICS));
+	}
+
+	/**
+	 * Record the duration of a phase, from its start until now (housekeeping steps record from their own threads)
+	 * @param phase - name of the phase
+	 * @param start - value of {@link System#nanoTime()} when the phase started
+	 */
+	public void record(String phase, long start){
+		long duration = System.nanoTime() - start;
+		synchronized (phases) {
+			Long previous = phases.get(phase);
+			phases.put(phase, previous == null ? duration : previous + duration);
+		}
+	}
+
+	/**
+	 * Add the phases of this cycle to the histograms and write both metric files
+	 * @param exitCode - exit code of the merlin process
+	 */
+	public void finishCycle(int exitCode){
+		synchronized (histograms) {
+			cycles++;
+			for (Map.Entry<String, Long> phase : phases.entrySet()) {
+				Histogram histogram = histograms.get(phase.getKey());
+				if(histogram == null){
+					histogram = new Histogram();
+					histograms.put(phase.getKey(), histogram);
+				}
+				histogram.observe(seconds(phase.getValue()));
+			}
+
+			try {
+				File directory = LauncherUtilities.getCacheDirectory(DIRECTORY);
+				appendJson(new File(directory, JSON_FILE), exitCode);
+				writePrometheus(new File(directory, PROMETHEUS_FILE));
+			}
+			catch (IOException e) {
+				logger.warn("metrics.write.failed", "error", e.getMessage());
+			}
+		}
+	}
+
+	private static double seconds(long nanos){
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private void appendJson(File file, int exitCode) throws IOException{
+		StringBuilder line = new StringBuilder(256);
+		line.append("{\"timestamp\":").append(System.currentTimeMillis())
+			.append(",\"cycle\":").append(cycles)
+			.append(",\"exit_code\":").append(exitCode)
+			.append(",\"total_seconds\":").append(format(seconds(System.nanoTime() - cycleStart)))
+			.append(",\"phases\":{");
+
+		String separator = "";
+		for (Map.Entry<String, Long> phase : phases.entrySet()) {
+			line.append(separator).append('"').append(phase.getKey()).append("\":").append(format(seconds(phase.getValue())));
+			separator = ",";
+		}
+		line.append("}}");
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+			writer.write(line.toString());
+			writer.newLine();
+		}
+	}
+
+	private static void writePrometheus(File file) throws IOException{
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+			writer.write("# HELP merlin_launcher_cycles_total Launch/restart cycles run by the launcher\n");
+			writer.write("# TYPE merlin_launcher_cycles_total counter\n");
+			writer.write("merlin_launcher_cycles_total " + cycles + "\n");
+			writer.write("# HELP merlin_launcher_phase_seconds Duration of the phases of a launch/restart cycle\n");
+			writer.write("# TYPE merlin_launcher_phase_seconds histogram\n");
+
+			for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+				String phase = entry.getKey();
+				Histogram histogram = entry.getValue();
+
+				for (int i = 0; i < BUCKETS.length; i++)
+					writer.write("merlin_launcher_phase_seconds_bucket{phase=\"" + phase + "\",le=\"" + BUCKETS[i] + "\"} " + histogram.counts[i] + "\n");
+				writer.write("merlin_launcher_phase_seconds_bucket{phase=\"" + phase + "\",le=\"+Inf\"} " + histogram.count + "\n");
+				writer.write("merlin_launcher_phase_seconds_sum{phase=\"" + phase + "\"} " + format(histogram.sum) + "\n");
+				writer.write("merlin_launcher_phase_seconds_count{phase=\"" + phase + "\"} " + histogram.count + "\n");
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String format(double value){
+		return String.format(Locale.ROOT, "%.6f", value);
+	}
+}
@@ -0,0 +1,183 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes files and folders (recursively, bottom-up) on a bounded pool of threads.
+ * <p>Instead of a line per file, the executor counts the files, folders and bytes reclaimed and reports them once.
+ * The working directory and its parents are never deleted.
+ */
+final class DeletionExecutor {
+
+	private static final LauncherLog logger = LauncherLog.get(DeletionExecutor.class);
+
+	private final ExecutorService pool;
+	private final List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong directories = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public DeletionExecutor(){
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "merlin-delete-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Schedule the deletion of a file or folder, with everything in it
+	 * @param fileName - path to delete
+	 */
+	public synchronized void submit(final String fileName){
+		tasks.add(pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				delete(Paths.get(fileName));
+			}
+		}));
+	}
+
+	/**
+	 * Schedule the deletion of several files or folders
+	 * @param fileNames - paths to delete
+	 */
+	public void submitAll(List<String> fileNames){
+		for (String fileName : fileNames)
+			submit(fileName);
+	}
+
+	private void delete(Path root){
+		if(!Files.exists(root, LinkOption.NOFOLLOW_LINKS))
+			return;
+
+		// An empty path exists, it is the working directory
+		try {
+			if(Paths.get("").toRealPath().startsWith(root.toRealPath())) {
+				logger.warn("delete.refused", "path", root.toAbsolutePath(), "reason", "working directory or one of its parents");
+				return;
+			}
+		}
+		catch (IOException e) {
+			failed(root, e);
+			return;
+		}
+
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					try {
+						Files.delete(file);
+						files.incrementAndGet();
+						bytes.addAndGet(attrs.size());
+					} catch (IOException e) {
+						failed(file, e);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					failed(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					try {
+						Files.delete(dir);
+						directories.incrementAndGet();
+					} catch (IOException ex) {
+						failed(dir, ex);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e) {
+			failed(root, e);
+		}
+	}
+
+	private void failed(Path path, IOException e){
+		failures.incrementAndGet();
+		logger.debug("delete.failed", "path", path, "error", e.getMessage());
+	}
+
+	/** Wait for all the scheduled deletions */
+	public void await() throws InterruptedException{
+		List<Future<?>> pending;
+		synchronized (this) {
+			pending = new ArrayList<Future<?>>(tasks);
+			tasks.clear();
+		}
+		for (Future<?> task : pending) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				logger.warn("delete.failed", e.getCause());
+			}
+		}
+	}
+
+	/** Wait for all the scheduled deletions, stop the threads and log the report */
+	public void shutdown() throws InterruptedException{
+		await();
+		pool.shutdown();
+		if(files.get() + directories.get() + failures.get() > 0)
+			logger.info("delete.report", "files", files.get(), "folders", directories.get(), "bytes", bytes.get(), "failures", failures.get());
+	}
+
+	/**
+	 * Check if deleting a path could affect the merlin process: it is in the classpath or the plugins folder, or contains them
+	 * @param fileName - path to delete
+	 * @param classpath - classpath of the merlin process
+	 * @param pluginsBin - folder with the installed plugins
+	 * @return true if the path must be deleted before the process starts
+	 */
+	public static boolean isUsedByProcess(String fileName, String classpath, String pluginsBin){
+		Path target = Paths.get(fileName).toAbsolutePath().normalize();
+
+		List<String> entries = new ArrayList<String>();
+		if(classpath != null)
+			for (String entry : classpath.split(File.pathSeparator))
+				entries.add(entry.endsWith("*") ? entry.substring(0, entry.length() - 1) : entry);
+		if(pluginsBin != null)
+			entries.add(pluginsBin);
+
+		for (String entry : entries) {
+			if(entry.isEmpty())
+				entry = ".";
+			Path used = Paths.get(entry).toAbsolutePath().normalize();
+			if(target.startsWith(used) || used.startsWith(target))
+				return true;
+		}
+		return false;
+	}
+}
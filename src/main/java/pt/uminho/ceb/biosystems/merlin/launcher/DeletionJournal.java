@@ -0,0 +1,212 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal, in the launcher cache, of the files merlin asked to delete once it is no longer running.
+ * <p>Merlin appends the absolute paths, one per line with its CRC32, and the launcher replays the journal before starting merlin
+ * again, so the deletions survive crashes of merlin and of the launcher. Paths appended at the same time by several
+ * threads are written with a single fsync. A line torn by a crash fails its CRC and is ignored, so a part of a path
+ * (a parent folder) is never deleted. Paths that could not be deleted stay in the journal for the next replay: they are
+ * written to a temporary file that atomically replaces the journal, so a crash leaves either the old or the new journal.
+ * Appends and replays are serialized by a lock on a separate file, which is never replaced.
+ */
+final class DeletionJournal {
+
+	private static final String DIRECTORY = "deletions";
+	private static final String JOURNAL = "deletions.journal";
+	private static final String TEMPORARY = "deletions.journal.tmp";
+	private static final String LOCK_FILE = "deletions.lock";
+
+	// Paths waiting for the next write <Absolute path>
+	private static final List<String> pending = new ArrayList<String>();
+
+	// File locks are held by the JVM, the threads of this JVM also take turns on this lock
+	private static final Object LOCK = new Object();
+
+	private DeletionJournal(){
+	}
+
+	private static File getJournalFile(){
+		return new File(LauncherUtilities.getCacheDirectory(DIRECTORY), JOURNAL);
+	}
+
+	/** @return the channel of the lock file, kept while the journal is read or written */
+	private static FileChannel openLock() throws IOException{
+		return FileChannel.open(new File(LauncherUtilities.getCacheDirectory(DIRECTORY), LOCK_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	/** @return true if the journal has paths to delete */
+	public static boolean isPending(){
+		return new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), JOURNAL).length() > 0;
+	}
+
+	/**
+	 * Append paths to the journal, returning once they are on disk
+	 * @param files - files and folders to delete before merlin starts again
+	 */
+	public static void append(List<String> files) throws IOException{
+		synchronized (pending) {
+			for (String file : files)
+				pending.add(new File(file).getAbsolutePath());
+		}
+
+		synchronized (LOCK) {
+			StringBuilder lines = new StringBuilder();
+			synchronized (pending) {
+				// Already written by a thread that held the lock before
+				if(pending.isEmpty())
+					return;
+				for (String file : pending)
+					lines.append(toLine(file));
+				pending.clear();
+			}
+
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lockChannel.lock();
+				try (FileChannel channel = FileChannel.open(getJournalFile().toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+					// A line torn by a crash is ended, so it is not joined with the first path
+					long size = channel.size();
+					if(size > 0) {
+						ByteBuffer last = ByteBuffer.allocate(1);
+						channel.read(last, size - 1);
+						if(last.get(0) != '\n')
+							lines.insert(0, '\n');
+					}
+
+					ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+					while(buffer.hasRemaining())
+						channel.write(buffer, channel.size());
+					channel.force(false);
+				}
+				finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	private static String toLine(String file){
+		return checksum(file) + "\t" + file + "\n";
+	}
+
+	/** @return the path of a line, null if the line is torn or empty */
+	private static String fromLine(String line){
+		int tab = line.indexOf('\t');
+		if(tab < 0)
+			return null;
+		String file = line.substring(tab + 1);
+		return !file.isEmpty() && line.substring(0, tab).equals(checksum(file)) ? file : null;
+	}
+
+	private static String checksum(String file){
+		CRC32 crc = new CRC32();
+		crc.update(file.getBytes(StandardCharsets.UTF_8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	/** @return the paths of the journal, once each and without the torn lines */
+	private static Set<String> read(File journal) throws IOException{
+		String content = new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+
+		// The same path may have been appended several times
+		Set<String> files = new LinkedHashSet<String>();
+		for (String line : content.split("\n")) {
+			String file = fromLine(line);
+			if(file != null)
+				files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * Get the paths waiting for the next replay
+	 * @return the paths, empty if there are none
+	 */
+	public static List<String> getPending() throws IOException{
+		if(!isPending())
+			return new ArrayList<String>();
+
+		synchronized (LOCK) {
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lockChannel.lock();
+				try {
+					return new ArrayList<String>(read(getJournalFile()));
+				}
+				finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the files of the journal, while merlin is not running
+	 * @return the number of paths replayed
+	 */
+	public static int replay() throws IOException, InterruptedException{
+		if(!isPending())
+			return 0;
+		File journal = getJournalFile();
+
+		synchronized (LOCK) {
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lockChannel.lock();
+				try {
+					Set<String> files = read(journal);
+
+					DeletionExecutor deletions = new DeletionExecutor();
+					deletions.submitAll(new ArrayList<String>(files));
+					deletions.shutdown();
+
+					StringBuilder remaining = new StringBuilder();
+					for (String file : files)
+						if(new File(file).exists())
+							remaining.append(toLine(file));
+
+					// The journal is replaced at once, a crash leaves either all the old or all the remaining paths
+					File temporary = new File(journal.getParentFile(), TEMPORARY);
+					try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+						ByteBuffer rest = ByteBuffer.wrap(remaining.toString().getBytes(StandardCharsets.UTF_8));
+						while(rest.hasRemaining())
+							channel.write(rest);
+						channel.force(false);
+					}
+					Files.move(temporary.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					syncDirectory(journal.getParentFile());
+					return files.size();
+				}
+				finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/** Write the entries of a folder to disk, so a rename survives a crash; not possible on every OS */
+	private static void syncDirectory(File directory){
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch (IOException e) {
+			// Windows can not open folders
+		}
+	}
+}
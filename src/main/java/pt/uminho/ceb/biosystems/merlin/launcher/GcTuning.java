@@ -0,0 +1,589 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collector and heap of the merlin process, tuned between cycles from its GC log.
+ * <p>The merlin process writes its GC log to the launcher cache (<code>-Xlog:gc*</code>, or <code>-Xloggc</code> on
+ * Java 8), one file per process. The log is read while the process runs, each read continuing after the last complete
+ * line, and once more after it exits: pause time percentiles, allocation rate, live set after the full collections and
+ * GC time, and the error log is checked for an OutOfMemoryError. Each cycle is added to a small history, and the heap
+ * and the collector of the next cycle are chosen within <code>heapMinMB</code>, <code>heapMaxMB</code> and
+ * <code>gcCollectors</code>. Pauses above the target move to a collector with lower pauses; a collector chosen that
+ * way goes back one step toward throughput only after several cycles with pauses under half the target, so it does
+ * not switch back and forth. Heap or collector flags set with JAVA_PARAM are never overridden.
+ */
+final class GcTuning implements Runnable {
+
+	private static final LauncherLog logger = LauncherLog.get(GcTuning.class);
+
+	// Properties of main.conf
+	public static final String GCTUNING = "gctuning";
+	public static final String GCCOLLECTORS = "gcCollectors";
+	public static final String GCPAUSETARGETMS = "gcPauseTargetMs";
+
+	// Collectors from the highest throughput to the lowest pauses
+	private static final List<String> COLLECTORS = Arrays.asList("Serial", "Parallel", "G1", "ZGC");
+	private static final String DEFAULT_COLLECTORS = "Parallel,G1";
+	private static final long DEFAULT_PAUSE_TARGET = 200;
+
+	private static final long MB = 1024 * 1024;
+	private static final double AVAILABLE_LIMIT = 0.8;
+
+	// Percentage of the lifetime spent in pauses above which the heap grows
+	private static final double GC_TIME_LIMIT = 10;
+	// Heap relative to the live set: grown below the first, shrunk above the second, to the third
+	private static final double LIVE_SET_MIN = 2;
+	private static final double LIVE_SET_MAX = 6;
+	private static final double LIVE_SET_TARGET = 3;
+	// Cycles without memory pressure before the heap shrinks
+	private static final int SHRINK_CYCLES = 3;
+	// Cycles with pauses under half the target before a tuned collector goes back toward throughput
+	private static final int CALM_CYCLES = 3;
+
+	// Interval between the reads of the GC log while the process runs
+	private static final long READ_INTERVAL = 5000;
+
+	private static final String DIRECTORY = "gc";
+	private static final String LOG_PREFIX = "gc-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String STATE_FILE = "tuning.properties";
+	private static final String HISTORY_FILE = "history.tsv";
+	private static final int HISTORY = 20;
+	private static final int LOGS = 5;
+
+	private static final String OOM = "java.lang.OutOfMemoryError";
+
+	private final LaunchConfiguration config;
+	private final int instances;
+	private final String collector;
+	private final long heap;
+	private final GcLog gcLog;
+	private final File errorLog;
+	private final long errorOffset;
+	private final long start = System.currentTimeMillis();
+	private Thread thread;
+
+	private GcTuning(LaunchConfiguration config, int instances, String collector, long heap, File gcLog, File errorLog){
+		this.config = config;
+		this.instances = instances;
+		this.collector = collector;
+		this.heap = heap;
+		this.gcLog = new GcLog(gcLog);
+		this.errorLog = errorLog;
+		this.errorOffset = errorLog.length();
+	}
+
+	/** @return true if the configuration enables the GC tuning */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return "true".equalsIgnoreCase(config.getProperty(GCTUNING));
+	}
+
+	/**
+	 * Apply the tuning to the heap flags of the next launch, and add the collector and the GC log flags
+	 * @param config - launch configuration
+	 * @param heapArgs - heap flags computed by {@link HeapSizing}
+	 * @param instances - number of merlin processes sharing the memory of the host
+	 * @return the flags not already set by the user
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config, List<String> heapArgs, int instances){
+		if(!isEnabled(config))
+			return heapArgs;
+
+		int version = JreCapabilities.of(config.getJRE()).getMajorVersion();
+		boolean userXmx = false, userCollector = false, userLog = false;
+		for (String arg : config.getJavaArgsOS()) {
+			userXmx |= arg.startsWith("-Xmx") || arg.startsWith("-XX:MaxHeapSize") || arg.startsWith("-XX:MaxRAMPercentage");
+			userCollector |= arg.matches("-XX:\\+Use\\w+GC");
+			userLog |= arg.startsWith("-Xlog:gc") || arg.startsWith("-Xloggc");
+		}
+
+		Properties state = readState();
+		List<String> args = new ArrayList<String>(heapArgs);
+
+		long heap = parseLong(state.getProperty("heapMB"));
+		if(heap > 0 && !userXmx) {
+			heap = Math.max(getHeapMin(config), Math.min(getHeapMax(config, instances), heap));
+			replace(args, "-Xmx", "-Xmx" + heap + "m");
+			// The initial heap is never larger than the maximum
+			for (int i = 0; i < args.size(); i++)
+				if(args.get(i).startsWith("-Xms") && parseSize(args.get(i).substring(4)) > heap * MB)
+					args.set(i, "-Xms" + heap + "m");
+		}
+
+		String collector = state.getProperty("collector");
+		if(collector != null && !userCollector && getCollectors(config, version).contains(collector))
+			args.add(collector.equals("ZGC") ? "-XX:+UseZGC" : "-XX:+Use" + collector + "GC");
+
+		// The %p of the file name is the process id, a process of the warm standby writes its own log
+		if(!userLog && version > 0) {
+			String file = new File(LauncherUtilities.getCacheDirectory(DIRECTORY), LOG_PREFIX + "%p" + LOG_SUFFIX).getPath();
+			if(version >= 9)
+				args.add("-Xlog:gc*:file=" + file + ":uptime,level,tags");
+			else {
+				args.add("-Xloggc:" + file);
+				args.add("-XX:+PrintGCTimeStamps");
+			}
+		}
+		return args;
+	}
+
+	private static void replace(List<String> args, String prefix, String arg){
+		for (int i = 0; i < args.size(); i++)
+			if(args.get(i).startsWith(prefix)) {
+				args.set(i, arg);
+				return;
+			}
+		args.add(0, arg);
+	}
+
+	/**
+	 * Start following a merlin process
+	 * @param config - launch configuration
+	 * @param command - command of the process
+	 * @param process - merlin process
+	 * @param logError - error log of the process
+	 * @param instances - number of merlin processes sharing the memory of the host
+	 * @return the tuning of the cycle, null if the GC log of the process can not be found
+	 */
+	public static GcTuning start(LaunchConfiguration config, List<String> command, Process process, String logError, int instances){
+		long pid = ProcessProbe.getPid(process);
+		if(pid < 0) {
+			logger.debug("gc.log.unavailable", "reason", "no pid");
+			return null;
+		}
+
+		String collector = null;
+		long heap = -1;
+		for (String arg : command) {
+			if(arg.startsWith("-Xmx"))
+				heap = parseSize(arg.substring(4)) / MB;
+			else if(arg.matches("-XX:\\+Use\\w+GC"))
+				collector = arg.equals("-XX:+UseZGC") ? "ZGC" : arg.substring(8, arg.length() - 2);
+		}
+
+		// Default maximum heap of the JVM, a quarter of the memory
+		long available = HeapSizing.getAvailableMemory();
+		if(heap < 0 && available > 0)
+			heap = available / 4 / MB;
+
+		File gcLog = new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), LOG_PREFIX + pid + LOG_SUFFIX);
+		GcTuning tuning = new GcTuning(config, instances, collector, heap, gcLog, new File(logError));
+
+		// The log of a long run is not read at once after the exit
+		tuning.thread = new Thread(tuning, "merlin-gc-log");
+		tuning.thread.setDaemon(true);
+		tuning.thread.start();
+		return tuning;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				Thread.sleep(READ_INTERVAL);
+				gcLog.read();
+			}
+		}
+		catch (InterruptedException e) {
+			// Process exited
+		}
+	}
+
+	/**
+	 * Read the rest of the GC log of the process that exited, and choose the heap and the collector of the next cycle
+	 * @param exitCode - exit code of the process
+	 */
+	public void finish(int exitCode) throws InterruptedException{
+		thread.interrupt();
+		thread.join();
+		gcLog.read();
+		boolean oom = hasOutOfMemoryError();
+		long lifetime = System.currentTimeMillis() - start;
+
+		int version = JreCapabilities.of(config.getJRE()).getMajorVersion();
+
+		// The default collector is G1 from Java 9
+		String used = gcLog.collector != null ? gcLog.collector : collector;
+		if(used == null)
+			used = version >= 9 ? "G1" : "Parallel";
+
+		long[] pauses = gcLog.getPausePercentiles();
+		double seconds = Math.max(gcLog.lastUptime, lifetime / 1000.0);
+		double gcTime = seconds > 0 ? gcLog.pauseTotal / 10000.0 / seconds : 0;
+		double allocationRate = gcLog.lastUptime > 0 ? gcLog.allocated / (double) MB / gcLog.lastUptime : 0;
+		long liveSet = gcLog.liveSet / MB;
+
+		logger.info("gc.cycle", "collector", used, "heap_mb", heap, "pauses", gcLog.pauses.size(), "p50_ms", pauses[0],
+				"p95_ms", pauses[1], "p99_ms", pauses[2], "max_ms", pauses[3],
+				"alloc_mb_s", String.format(Locale.ROOT, "%.1f", allocationRate), "live_set_mb", liveSet,
+				"gc_time_pct", String.format(Locale.ROOT, "%.1f", gcTime), "oom", oom, "exit_code", exitCode);
+
+		boolean userXmx = false, userCollector = false;
+		for (String arg : config.getJavaArgsOS()) {
+			userXmx |= arg.startsWith("-Xmx") || arg.startsWith("-XX:MaxHeapSize") || arg.startsWith("-XX:MaxRAMPercentage");
+			userCollector |= arg.matches("-XX:\\+Use\\w+GC");
+		}
+
+		cleanLogs();
+
+		synchronized (GcTuning.class) {
+			List<String> history = readHistory();
+			List<String> collectors = getCollectors(config, version);
+
+			long nextHeap = heap;
+			String reason = null;
+			if(heap > 0 && !userXmx) {
+				if(oom) {
+					nextHeap = heap * 2;
+					reason = "oom";
+				}
+				else if(gcTime > GC_TIME_LIMIT) {
+					nextHeap = heap * 3 / 2;
+					reason = "gc_time";
+				}
+				else if(liveSet > 0 && heap < liveSet * LIVE_SET_MIN) {
+					nextHeap = (long) (liveSet * LIVE_SET_TARGET);
+					reason = "live_set";
+				}
+				else if(liveSet > 0 && heap > liveSet * LIVE_SET_MAX && isRelaxed(history)) {
+					nextHeap = (long) (liveSet * LIVE_SET_TARGET);
+					reason = "shrink";
+				}
+				nextHeap = Math.max(getHeapMin(config), Math.min(getHeapMax(config, instances), nextHeap));
+			}
+
+			// Pauses above the target move to the collector with the next lower pauses
+			String nextCollector = used;
+			long target = getLong(config, GCPAUSETARGETMS, DEFAULT_PAUSE_TARGET);
+			if(pauses[2] > target && !userCollector) {
+				for (int i = COLLECTORS.indexOf(used) + 1; i > 0 && i < COLLECTORS.size(); i++)
+					if(collectors.contains(COLLECTORS.get(i))) {
+						nextCollector = COLLECTORS.get(i);
+						reason = reason == null ? "pause_target" : reason + ",pause_target";
+						break;
+					}
+			}
+			// A collector chosen by the tuning goes back toward throughput once the pauses stayed well under the target
+			else if(!userCollector && used.equals(readState().getProperty("collector")) && pauses[2] <= target / 2
+					&& isCalm(history, used, target)) {
+				for (int i = COLLECTORS.indexOf(used) - 1; i >= 0; i--)
+					if(collectors.contains(COLLECTORS.get(i))) {
+						nextCollector = COLLECTORS.get(i);
+						reason = reason == null ? "throughput" : reason + ",throughput";
+						break;
+					}
+			}
+
+			history.add(System.currentTimeMillis() + "\t" + used + "\t" + heap + "\t" + gcLog.pauses.size() + "\t" + pauses[0]
+					+ "\t" + pauses[2] + "\t" + pauses[3] + "\t" + String.format(Locale.ROOT, "%.1f", allocationRate) + "\t" + liveSet
+					+ "\t" + String.format(Locale.ROOT, "%.1f", gcTime) + "\t" + (oom ? 1 : 0) + "\t" + exitCode);
+			writeHistory(history);
+
+			if(nextHeap == heap && nextCollector.equals(used)) {
+				logger.info("gc.decision", "change", "none", "reason", reason == null ? "within_targets" : reason + ",at_limit");
+				return;
+			}
+
+			Properties state = readState();
+			if(nextHeap > 0)
+				state.setProperty("heapMB", String.valueOf(nextHeap));
+			if(!nextCollector.equals(used))
+				state.setProperty("collector", nextCollector);
+			writeState(state);
+			logger.info("gc.decision", "collector", used + "->" + nextCollector, "heap_mb", heap + "->" + nextHeap, "reason", reason);
+		}
+	}
+
+	/** @return true if the last cycles had no memory pressure */
+	private static boolean isRelaxed(List<String> history){
+		if(history.size() < SHRINK_CYCLES)
+			return false;
+		for (String line : history.subList(history.size() - SHRINK_CYCLES, history.size())) {
+			String[] fields = line.split("\t");
+			try {
+				if(fields.length < 11 || !fields[10].equals("0") || Double.parseDouble(fields[9]) > GC_TIME_LIMIT / 2)
+					return false;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return true if the last cycles ran the collector with pauses under half the target */
+	private static boolean isCalm(List<String> history, String collector, long target){
+		if(history.size() < CALM_CYCLES - 1)
+			return false;
+		// The current cycle is the last of them, it is not in the history yet
+		for (String line : history.subList(history.size() - (CALM_CYCLES - 1), history.size())) {
+			String[] fields = line.split("\t");
+			try {
+				if(fields.length < 6 || !fields[1].equals(collector) || Long.parseLong(fields[5]) > target / 2)
+					return false;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Check the error output written by the process for an OutOfMemoryError */
+	private boolean hasOutOfMemoryError(){
+		long length = errorLog.length();
+		// Truncated when the process started
+		long offset = length < errorOffset ? 0 : errorOffset;
+		if(length <= offset)
+			return false;
+
+		try (RandomAccessFile file = new RandomAccessFile(errorLog, "r")) {
+			byte[] buffer = new byte[64 * 1024];
+			file.seek(offset);
+			String previous = "";
+			int read;
+			while((read = file.read(buffer)) > 0) {
+				String chunk = new String(buffer, 0, read, StandardCharsets.ISO_8859_1);
+				// The end of the last chunk, the text may be split between two reads
+				if((previous + chunk).contains(OOM))
+					return true;
+				previous = chunk.substring(Math.max(0, chunk.length() - OOM.length()));
+			}
+		}
+		catch (IOException e) {
+			logger.debug("gc.errorlog.failed", "file", errorLog, "error", e.getMessage());
+		}
+		return false;
+	}
+
+	/** Delete the oldest GC logs */
+	private static void cleanLogs(){
+		File[] logs = new File(LauncherUtilities.CACHE_PATH, DIRECTORY).listFiles((dir, name) -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX));
+		if(logs == null || logs.length <= LOGS)
+			return;
+		Arrays.sort(logs, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < logs.length - LOGS; i++)
+			logs[i].delete();
+	}
+
+	/** Collectors allowed by the configuration and supported by the JRE (ZGC from Java 15) */
+	private static List<String> getCollectors(LaunchConfiguration config, int version){
+		String value = config.getProperty(GCCOLLECTORS);
+		List<String> collectors = new ArrayList<String>();
+		for (String collector : (value == null ? DEFAULT_COLLECTORS : value).split(","))
+			for (String known : COLLECTORS)
+				if(known.equalsIgnoreCase(collector.trim()) && (!known.equals("ZGC") || version >= 15))
+					collectors.add(known);
+		return collectors;
+	}
+
+	private static long getHeapMin(LaunchConfiguration config){
+		return getLong(config, HeapSizing.HEAPMINMB, HeapSizing.DEFAULT_MIN);
+	}
+
+	/** Largest heap of the configuration and of the share of the host memory of one process, in MB */
+	private static long getHeapMax(LaunchConfiguration config, int instances){
+		long max = getLong(config, HeapSizing.HEAPMAXMB, HeapSizing.DEFAULT_MAX);
+		long available = HeapSizing.getAvailableMemory();
+		if(available > 0)
+			max = Math.min(max, (long) (available / Math.max(1, instances) * AVAILABLE_LIMIT) / MB);
+		return max;
+	}
+
+	private static long getLong(LaunchConfiguration config, String property, long defaultValue){
+		String value = config.getProperty(property);
+		try {
+			if(value != null)
+				return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", property, "value", value);
+		}
+		return defaultValue;
+	}
+
+	private static long parseLong(String value){
+		try {
+			return value == null ? -1 : Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** @return the bytes of a JVM size (<code>512m</code>, <code>2g</code>, <code>24.0M</code>), -1 if invalid */
+	static long parseSize(String size){
+		Matcher m = Pattern.compile("(\\d+(?:[.,]\\d+)?)([kKmMgGtT]?)").matcher(size.trim());
+		if(!m.matches())
+			return -1;
+		double value = Double.parseDouble(m.group(1).replace(',', '.'));
+		switch (m.group(2).toLowerCase()) {
+		case "k": return (long) (value * 1024);
+		case "m": return (long) (value * MB);
+		case "g": return (long) (value * MB * 1024);
+		case "t": return (long) (value * MB * 1024 * 1024);
+		default: return (long) value;
+		}
+	}
+
+	private static Properties readState(){
+		Properties state = new Properties();
+		File file = new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), STATE_FILE);
+		if(file.isFile())
+			try (InputStream in = new FileInputStream(file)) {
+				state.load(in);
+			} catch (IOException e) {
+				state.clear();
+			}
+		return state;
+	}
+
+	private static void writeState(Properties state){
+		try (OutputStream out = new FileOutputStream(new File(LauncherUtilities.getCacheDirectory(DIRECTORY), STATE_FILE))) {
+			state.store(out, "GC tuning of the next merlin process");
+		} catch (IOException e) {
+			logger.warn("gc.state.save.failed", "error", e.getMessage());
+		}
+	}
+
+	private static List<String> readHistory(){
+		File file = new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), HISTORY_FILE);
+		if(!file.isFile())
+			return new ArrayList<String>();
+		try {
+			return new ArrayList<String>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			return new ArrayList<String>();
+		}
+	}
+
+	private static void writeHistory(List<String> history){
+		while(history.size() > HISTORY)
+			history.remove(0);
+		try {
+			Files.write(new File(LauncherUtilities.getCacheDirectory(DIRECTORY), HISTORY_FILE).toPath(), history, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			logger.warn("gc.history.save.failed", "error", e.getMessage());
+		}
+	}
+
+	/**
+	 * GC log of one process, read incrementally: each read continues after the last complete line.
+	 * <p>Both the unified logging of Java 9+ (<code>[1.234s][info][gc] GC(3) Pause Young (Normal) (G1 Evacuation Pause)
+	 * 24M-&gt;3M(256M) 3.456ms</code>) and the Java 8 format (<code>1.234: [GC (Allocation Failure)
+	 * 65536K-&gt;10752K(251392K), 0.0123456 secs]</code>) are read.
+	 */
+	static final class GcLog {
+
+		private static final Pattern UPTIME = Pattern.compile("^\\[?(\\d+[.,]\\d+)s?[\\]:]");
+		private static final Pattern PAUSE = Pattern.compile(
+				"(\\d+(?:[.,]\\d+)?[KMG])->(\\d+(?:[.,]\\d+)?[KMG])\\(\\d+(?:[.,]\\d+)?[KMG]\\),? (\\d+[.,]\\d+) ?(ms|secs)");
+		// Pauses and collections of ZGC, reported on separate lines
+		private static final Pattern ZGC_PAUSE = Pattern.compile("GC\\(\\d+\\) Pause [A-Za-z ]+ (\\d+[.,]\\d+)ms$");
+		private static final Pattern ZGC_COLLECTION = Pattern.compile(
+				"Collection \\([^)]*\\) (\\d+(?:[.,]\\d+)?[KMG])\\(\\d+%\\)->(\\d+(?:[.,]\\d+)?[KMG])\\(\\d+%\\)");
+		private static final Pattern USING = Pattern.compile("\\] Using (.+)$");
+
+		private final File file;
+		private long offset;
+
+		// Pause times, in microseconds
+		private final List<Long> pauses = new ArrayList<Long>();
+		private long pauseTotal;
+		private double lastUptime;
+		private long allocated;
+		private long lastAfter;
+		private long liveSet;
+		private String collector;
+
+		GcLog(File file){
+			this.file = file;
+		}
+
+		/** Read the lines added since the last read */
+		synchronized void read(){
+			if(!file.isFile() || file.length() <= offset)
+				return;
+
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				in.seek(offset);
+				byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE, in.length() - offset)];
+				in.readFully(bytes);
+
+				// A line still being written is read the next time
+				int end = bytes.length;
+				while(end > 0 && bytes[end - 1] != '\n')
+					end--;
+				offset += end;
+
+				for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\r?\n"))
+					parse(line);
+			}
+			catch (IOException e) {
+				logger.debug("gc.log.failed", "file", file, "error", e.getMessage());
+			}
+		}
+
+		void parse(String line){
+			Matcher m = UPTIME.matcher(line);
+			if(m.find())
+				lastUptime = Double.parseDouble(m.group(1).replace(',', '.'));
+
+			if((m = USING.matcher(line)).find()) {
+				String name = m.group(1);
+				collector = name.contains("G1") ? "G1" : name.contains("Parallel") ? "Parallel" : name.contains("Z Garbage") ? "ZGC"
+						: name.contains("Serial") ? "Serial" : name.trim();
+			}
+			else if((m = PAUSE.matcher(line)).find()) {
+				double time = Double.parseDouble(m.group(3).replace(',', '.'));
+				addPause((long) (m.group(4).equals("ms") ? time * 1000 : time * 1000000));
+				collected(parseSize(m.group(1)), parseSize(m.group(2)), line.contains("Full"));
+			}
+			else if((m = ZGC_PAUSE.matcher(line)).find())
+				addPause((long) (Double.parseDouble(m.group(1).replace(',', '.')) * 1000));
+			else if((m = ZGC_COLLECTION.matcher(line)).find())
+				// Every collection of ZGC marks the whole heap
+				collected(parseSize(m.group(1)), parseSize(m.group(2)), true);
+		}
+
+		private void addPause(long micros){
+			pauses.add(micros);
+			pauseTotal += micros;
+		}
+
+		private void collected(long before, long after, boolean full){
+			allocated += Math.max(0, before - lastAfter);
+			lastAfter = after;
+			if(full)
+				liveSet = after;
+		}
+
+		/** @return the 50th, 95th and 99th percentiles and the maximum of the pauses, in milliseconds */
+		long[] getPausePercentiles(){
+			if(pauses.isEmpty())
+				return new long[4];
+			List<Long> sorted = new ArrayList<Long>(pauses);
+			Collections.sort(sorted);
+			return new long[]{percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), sorted.get(sorted.size() - 1) / 1000};
+		}
+
+		private static long percentile(List<Long> sorted, int percent){
+			int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+			return sorted.get(Math.max(0, index)) / 1000;
+		}
+	}
+}
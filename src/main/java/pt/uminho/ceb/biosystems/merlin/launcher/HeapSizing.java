@@ -0,0 +1,268 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Heap sizing of the merlin process from the memory that is actually available.
+ * <p>The heap is a fraction of the smaller of the host RAM and the cgroup (v1 or v2) memory limit, kept between the
+ * configured bounds. The memory used outside the heap (peak resident size minus the maximum heap of the cycle) is
+ * remembered for the last cycles, older cycles counting less, and the heap is lowered so heap and native memory fit the
+ * available memory. The peak resident size never raises the heap: it includes the heap sized here, and would grow it
+ * every cycle; a bigger heap comes from the GC tuning or from a request of merlin.
+ * Heap or metaspace flags set with JAVA_PARAM are never overridden.
+ */
+final class HeapSizing {
+
+	private static final LauncherLog logger = LauncherLog.get(HeapSizing.class);
+
+	// Properties of main.conf
+	public static final String HEAPSIZING = "heapsizing";
+	public static final String HEAPMINMB = "heapMinMB";
+	public static final String HEAPMAXMB = "heapMaxMB";
+	public static final String HEAPFRACTION = "heapFraction";
+	public static final String METASPACEMB = "metaspaceMB";
+
+	private static final long MB = 1024 * 1024;
+	static final long DEFAULT_MIN = 256;
+	static final long DEFAULT_MAX = 32 * 1024;
+	private static final long DEFAULT_FRACTION = 25;
+	private static final long DEFAULT_METASPACE = 512;
+
+	private static final double AVAILABLE_LIMIT = 0.8;
+	// Weight of the native memory of a cycle for each newer cycle
+	private static final double NATIVE_DECAY = 0.7;
+
+	private static final String DIRECTORY = "heap";
+	private static final String PEAK_FILE = "peak-rss";
+	private static final int PEAK_HISTORY = 5;
+
+	private HeapSizing(){
+	}
+
+	/** @return true if the configuration enables the heap sizing */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return "auto".equalsIgnoreCase(config.getProperty(HEAPSIZING));
+	}
+
+	/**
+	 * Compute the heap and metaspace flags for the next launch
+	 * @param config - launch configuration
+	 * @return the flags not already set by the user
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config){
+		return getJavaArgs(config, 1);
+	}
+
+	/**
+	 * Compute the heap and metaspace flags for the next launch
+	 * @param config - launch configuration
+	 * @param instances - number of merlin processes sharing the memory of the host
+	 * @return the flags not already set by the user
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config, int instances){
+		return getJavaArgs(config, instances, 0);
+	}
+
+	/**
+	 * Compute the heap and metaspace flags for the next launch
+	 * @param config - launch configuration
+	 * @param instances - number of merlin processes sharing the memory of the host
+	 * @param requested - heap merlin asked for through the control channel in MB, 0 if none
+	 * @return the flags not already set by the user
+	 */
+	public static List<String> getJavaArgs(LaunchConfiguration config, int instances, long requested){
+		if(!isEnabled(config))
+			return Collections.emptyList();
+
+		boolean userXmx = false, userXms = false, userMetaspace = false;
+		for (String arg : config.getJavaArgsOS()) {
+			userXmx |= arg.startsWith("-Xmx") || arg.startsWith("-XX:MaxHeapSize") || arg.startsWith("-XX:MaxRAMPercentage");
+			userXms |= arg.startsWith("-Xms") || arg.startsWith("-XX:InitialHeapSize") || arg.startsWith("-XX:InitialRAMPercentage");
+			userMetaspace |= arg.startsWith("-XX:MaxMetaspaceSize");
+		}
+
+		long min = getLong(config, HEAPMINMB, DEFAULT_MIN) * MB;
+		long max = getLong(config, HEAPMAXMB, DEFAULT_MAX) * MB;
+		long fraction = getLong(config, HEAPFRACTION, DEFAULT_FRACTION);
+
+		long available = getAvailableMemory();
+		if(available > 0)
+			available /= Math.max(1, instances);
+		long xmx = available > 0 ? available * fraction / 100 : min;
+
+		if(requested > 0)
+			xmx = Math.max(xmx, requested * MB);
+		long nativeMemory = getNativeMemory();
+		if(available > 0)
+			xmx = Math.min(xmx, (long) (available * AVAILABLE_LIMIT) - Math.max(0, nativeMemory));
+		xmx = Math.max(min, Math.min(max, xmx));
+
+		long xms = Math.min(xmx, Math.max(min, xmx / 4));
+
+		List<String> args = new ArrayList<String>();
+		if(!userXmx)
+			args.add("-Xmx" + (xmx / MB) + "m");
+		if(!userXms)
+			args.add("-Xms" + (xms / MB) + "m");
+		if(!userMetaspace)
+			args.add("-XX:MaxMetaspaceSize=" + getLong(config, METASPACEMB, DEFAULT_METASPACE) + "m");
+
+		logger.info("heap.sizing", "available_mb", available / MB, "native_mb", nativeMemory / MB, "instances", instances,
+				"requested_mb", requested, "args", args);
+		return args;
+	}
+
+	private static long getLong(LaunchConfiguration config, String property, long defaultValue){
+		String value = config.getProperty(property);
+		try {
+			if(value != null)
+				return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", property, "value", value);
+		}
+		return defaultValue;
+	}
+
+	/** @return the smaller of the host RAM and the cgroup limit in bytes, -1 if unknown */
+	public static long getAvailableMemory(){
+		long host = getHostMemory();
+		long cgroup = getCgroupLimit();
+
+		if(host <= 0)
+			return cgroup;
+		if(cgroup <= 0)
+			return host;
+		return Math.min(host, cgroup);
+	}
+
+	private static long getHostMemory(){
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		return -1;
+	}
+
+	/** Memory limit of the cgroup of the launcher, inherited by the merlin process, -1 if there is none */
+	private static long getCgroupLimit(){
+		// cgroup v2, unified hierarchy
+		String path = getCgroupPath("0::");
+		if(path != null){
+			long limit = readLimit(new File("/sys/fs/cgroup" + path, "memory.max"));
+			if(limit < 0)
+				limit = readLimit(new File("/sys/fs/cgroup", "memory.max"));
+			if(limit > 0)
+				return limit;
+		}
+
+		// cgroup v1, memory controller
+		long limit = readLimit(new File("/sys/fs/cgroup/memory", "memory.limit_in_bytes"));
+		if(limit > 0 && limit < Long.MAX_VALUE / 2)
+			return limit;
+		return -1;
+	}
+
+	private static String getCgroupPath(String prefix){
+		File cgroup = new File("/proc/self/cgroup");
+		if(!cgroup.isFile())
+			return null;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(cgroup))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				if(line.startsWith(prefix))
+					return line.substring(prefix.length());
+		}
+		catch (IOException e) {
+			// No cgroup information
+		}
+		return null;
+	}
+
+	private static long readLimit(File file){
+		if(!file.isFile())
+			return -1;
+		try {
+			String value = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+			if(value.equals("max"))
+				return -1;
+			return Long.parseLong(value);
+		}
+		catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the memory used outside the heap in the last cycles in bytes, each cycle weighted by
+	 * {@value #NATIVE_DECAY} for every newer one; -1 if none was recorded
+	 */
+	public static long getNativeMemory(){
+		List<long[]> history = readPeakHistory();
+		double estimate = -1, weight = 1;
+		for (int i = history.size() - 1; i >= 0; i--, weight *= NATIVE_DECAY)
+			estimate = Math.max(estimate, Math.max(0, history.get(i)[0] - history.get(i)[1]) * weight);
+		return (long) estimate;
+	}
+
+	/**
+	 * Save the peak resident size of the merlin process in the last cycle, with the maximum heap it ran with
+	 * @param bytes - peak resident size
+	 * @param command - command of the process
+	 */
+	public static synchronized void recordPeakRss(long bytes, List<String> command){
+		long heap = -1;
+		for (String arg : command) {
+			if(arg.startsWith("-Xmx"))
+				heap = GcTuning.parseSize(arg.substring(4));
+			else if(arg.startsWith("-XX:MaxHeapSize="))
+				heap = GcTuning.parseSize(arg.substring(16));
+		}
+		// Without the heap the native memory is not known
+		if(bytes <= 0 || heap <= 0)
+			return;
+
+		List<long[]> history = readPeakHistory();
+		history.add(new long[]{bytes, heap});
+		while(history.size() > PEAK_HISTORY)
+			history.remove(0);
+
+		List<String> lines = new ArrayList<String>();
+		for (long[] cycle : history)
+			lines.add(cycle[0] + "\t" + cycle[1]);
+		try {
+			Files.write(new File(LauncherUtilities.getCacheDirectory(DIRECTORY), PEAK_FILE).toPath(), lines, StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			logger.warn("heap.peak.save.failed", "error", e.getMessage());
+		}
+	}
+
+	/** @return the {peak resident size, maximum heap} of the last cycles, lines of older versions are skipped */
+	private static List<long[]> readPeakHistory(){
+		List<long[]> history = new ArrayList<long[]>();
+		File file = new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), PEAK_FILE);
+		if(!file.isFile())
+			return history;
+
+		try {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+				String[] fields = line.trim().split("\t");
+				if(fields.length == 2)
+					history.add(new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			history.clear();
+		}
+		return history;
+	}
+}
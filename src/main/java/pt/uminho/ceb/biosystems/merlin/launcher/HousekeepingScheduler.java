@@ -0,0 +1,148 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the housekeeping steps of a launch/restart cycle, each declared with the moment it may run and the steps it depends on.
+ * <p>Steps of the same phase run concurrently on a bounded pool once their dependencies are done, so only the steps
+ * that really need the merlin process gone are left for after it exits. The duration of each step is recorded in the cycle metrics.
+ */
+final class HousekeepingScheduler {
+
+	private static final LauncherLog logger = LauncherLog.get(HousekeepingScheduler.class);
+
+	/** When a step may run */
+	public enum Phase {
+		/** Before the merlin process starts, which waits for the step */
+		BEFORE_CHILD_START,
+		/** While the merlin process runs */
+		ANYTIME,
+		/** After the merlin process exits */
+		AFTER_CHILD_EXIT
+	}
+
+	/** A housekeeping step */
+	public interface Step {
+		void run() throws Exception;
+	}
+
+	private static final class Task {
+		private final String name;
+		private final Phase phase;
+		private final Step step;
+		private final String[] dependencies;
+
+		private Task(String name, Phase phase, Step step, String[] dependencies){
+			this.name = name;
+			this.phase = phase;
+			this.step = step;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private final CycleMetrics metrics;
+	private final ExecutorService pool;
+	private final List<Task> tasks = new ArrayList<Task>();
+
+	// Steps already started <Name, Completion>
+	private final Map<String, CompletableFuture<Void>> started = new HashMap<String, CompletableFuture<Void>>();
+
+	public HousekeepingScheduler(CycleMetrics metrics){
+		this.metrics = metrics;
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "merlin-housekeeping-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Declare a step
+	 * @param name - name of the step, also used for its metric
+	 * @param phase - when the step may run
+	 * @param step - work to do
+	 * @param dependencies - names of the steps that must be done first, of the same or an earlier phase
+	 */
+	public void add(String name, Phase phase, Step step, String... dependencies){
+		tasks.add(new Task(name, phase, step, dependencies));
+	}
+
+	/**
+	 * Start the steps of a phase, each as soon as its dependencies are done
+	 * @param phase - phase that was reached
+	 */
+	public void start(Phase phase){
+		for (Task task : tasks) {
+			if(task.phase != phase)
+				continue;
+
+			List<CompletableFuture<Void>> dependencies = new ArrayList<CompletableFuture<Void>>();
+			for (String dependency : task.dependencies) {
+				CompletableFuture<Void> future = started.get(dependency);
+				if(future != null)
+					dependencies.add(future);
+				else
+					logger.warn("housekeeping.dependency.missing", "step", task.name, "dependency", dependency);
+			}
+
+			final Task current = task;
+			CompletableFuture<Void> future = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+					.thenRunAsync(new Runnable() {
+						@Override
+						public void run() {
+							execute(current);
+						}
+					}, pool);
+			started.put(task.name, future);
+		}
+	}
+
+	private void execute(Task task){
+		long start = System.nanoTime();
+		try {
+			task.step.run();
+		}
+		catch (Exception e) {
+			// The steps that depend on it still run, as they did when housekeeping was sequential
+			logger.warn("housekeeping.step.failed", e, "step", task.name);
+		}
+		metrics.record(task.name, start);
+	}
+
+	/** Wait for all the steps started so far */
+	public void await() throws InterruptedException{
+		try {
+			CompletableFuture.allOf(started.values().toArray(new CompletableFuture<?>[started.size()])).get();
+		}
+		catch (ExecutionException e) {
+			logger.warn("housekeeping.failed", e.getCause());
+		}
+	}
+
+	/** Start the steps of a phase and wait for all the steps started so far */
+	public void run(Phase phase) throws InterruptedException{
+		start(phase);
+		await();
+	}
+
+	/** Wait for all the steps started so far and stop the threads */
+	public void shutdown() throws InterruptedException{
+		await();
+		pool.shutdown();
+	}
+}
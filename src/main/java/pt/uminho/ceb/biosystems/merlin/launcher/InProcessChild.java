@@ -0,0 +1,298 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Window;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs merlin inside the launcher JVM, in its own class loader, instead of a new process.
+ * <p>Exits of merlin are trapped, by {@link LauncherUtilities#restart()} through an exit hook and by a
+ * {@link SecurityManager} where the JRE still allows one, and end this "process" instead of the JVM.
+ * The windows are then disposed and the class loader dropped, so the next cycle starts with a fresh loader
+ * while the JDK classes and the JIT stay warm.
+ * <p>Only the <code>-D</code> arguments of JAVA_PARAM are applied (as system properties, restored on exit),
+ * the environment properties and the other JVM arguments can not be changed inside a running JVM.
+ */
+final class InProcessChild extends Process {
+
+	private static final LauncherLog logger = LauncherLog.get(InProcessChild.class);
+
+	// Property of main.conf: process (default) or inprocess
+	public static final String RESTARTMODE = "restartmode";
+	public static final String INPROCESS = "inprocess";
+
+	// System property holding the exit hook, shared by the class loaders of the launcher and merlin
+	public static final String EXIT_HOOK = "merlin.launcher.exitHook";
+
+	// Merlin running inside the launcher, at most one at a time
+	private static volatile InProcessChild current;
+	private static boolean securityManagerInstalled;
+
+	private final CountDownLatch exited = new CountDownLatch(1);
+	private volatile int exitCode;
+	private boolean cleanedUp;
+
+	private final URLClassLoader loader;
+	private final Map<String, String> previousProperties = new HashMap<String, String>();
+	private PrintStream out;
+	private PrintStream err;
+	private PrintStream log;
+	private PrintStream logError;
+
+	private InProcessChild(URLClassLoader loader){
+		this.loader = loader;
+	}
+
+	/** @return true if the configuration asks for the in-process restart mode */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return INPROCESS.equalsIgnoreCase(config.getProperty(RESTARTMODE));
+	}
+
+	/**
+	 * Start merlin in a new class loader
+	 * @param classpath - classpath entries of merlin
+	 * @param mainClass - main class
+	 * @param args - arguments of the main class
+	 * @param config - launch configuration, for the system properties
+	 * @param logFile - file for the standard output
+	 * @param logErrorFile - file for the standard error
+	 * @return the running merlin
+	 */
+	public static synchronized InProcessChild start(List<String> classpath, final String mainClass, final String[] args,
+			LaunchConfiguration config, String logFile, String logErrorFile) throws IOException{
+
+		URL[] urls = new URL[classpath.size()];
+		for (int i = 0; i < urls.length; i++)
+			urls[i] = new File(classpath.get(i)).toURI().toURL();
+
+		installExitTraps();
+
+		final InProcessChild child = new InProcessChild(new URLClassLoader(urls, getParentLoader()));
+		child.setSystemProperties(config.getJavaArgsOS());
+		child.redirectOutput(logFile, logErrorFile);
+		current = child;
+
+		Thread main = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Method main = Class.forName(mainClass, true, child.loader).getMethod("main", String[].class);
+					main.invoke(null, (Object) args);
+				}
+				catch (InvocationTargetException e) {
+					if(!(e.getCause() instanceof ExitTrappedException)){
+						e.getCause().printStackTrace();
+						child.exit(1);
+					}
+				}
+				catch (Throwable e) {
+					// Main class not found or not loadable, as a JVM that can not start it
+					e.printStackTrace();
+					child.exit(1);
+				}
+			}
+		}, "merlin-main");
+		main.setContextClassLoader(child.loader);
+		main.start();
+		return child;
+	}
+
+	/** Loader of the JDK classes only, so merlin does not see the classes of the launcher */
+	private static ClassLoader getParentLoader(){
+		try {
+			// Java 9+
+			return (ClassLoader) ClassLoader.class.getMethod("getPlatformClassLoader").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			// Java 8, extension class loader
+			return ClassLoader.getSystemClassLoader().getParent();
+		}
+	}
+
+	/** Thrown in the thread that asked merlin to exit, to unwind it */
+	@SuppressWarnings("serial")
+	private static final class ExitTrappedException extends SecurityException {
+		private ExitTrappedException(int status){
+			super("Exit of merlin trapped by the launcher: " + status);
+		}
+	}
+
+	private static void installExitTraps(){
+		System.getProperties().put(EXIT_HOOK, new IntConsumer() {
+			@Override
+			public void accept(int status) {
+				InProcessChild child = current;
+				if(child != null){
+					child.exit(status);
+					throw new ExitTrappedException(status);
+				}
+			}
+		});
+
+		if(securityManagerInstalled)
+			return;
+		try {
+			System.setSecurityManager(new SecurityManager() {
+				@Override
+				public void checkExit(int status) {
+					InProcessChild child = current;
+					if(child != null){
+						child.exit(status);
+						throw new ExitTrappedException(status);
+					}
+				}
+
+				@Override
+				public void checkPermission(Permission perm) {
+					// Everything else is allowed
+				}
+
+				@Override
+				public void checkPermission(Permission perm, Object context) {
+					// Everything else is allowed
+				}
+			});
+		}
+		catch (UnsupportedOperationException | SecurityException e) {
+			// JDK 18+ without -Djava.security.manager=allow: only LauncherUtilities.restart is trapped
+			logger.warn("inprocess.exit.trap.limited", "error", e.getMessage());
+		}
+		securityManagerInstalled = true;
+	}
+
+	private void setSystemProperties(List<String> javaArgs){
+		for (String arg : javaArgs) {
+			if(!arg.startsWith("-D"))
+				continue;
+			int equals = arg.indexOf('=');
+			String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+			String value = equals < 0 ? "" : arg.substring(equals + 1);
+			if(!previousProperties.containsKey(name))
+				previousProperties.put(name, System.getProperty(name));
+			System.setProperty(name, value);
+		}
+	}
+
+	private void redirectOutput(String logFile, String logErrorFile) throws IOException{
+		out = System.out;
+		err = System.err;
+		log = new PrintStream(new FileOutputStream(logFile), true);
+		logError = new PrintStream(new FileOutputStream(logErrorFile), true);
+		System.setOut(log);
+		System.setErr(logError);
+	}
+
+	/** Record the exit of merlin, only the first one counts */
+	private void exit(int status){
+		synchronized (exited) {
+			if(exited.getCount() == 0)
+				return;
+			exitCode = status;
+			exited.countDown();
+		}
+	}
+
+	/** Release everything merlin held in the launcher JVM */
+	private synchronized void cleanUp(){
+		if(cleanedUp)
+			return;
+		cleanedUp = true;
+		current = null;
+
+		if(!GraphicsEnvironment.isHeadless())
+			for (Window window : Window.getWindows())
+				window.dispose();
+
+		// Threads of merlin can not be stopped safely, they are asked to finish
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if(thread != Thread.currentThread() && thread.getContextClassLoader() == loader)
+				thread.interrupt();
+
+		try {
+			loader.close();
+		} catch (IOException e) {
+			logger.warn("inprocess.loader.close.failed", e);
+		}
+
+		System.setOut(out);
+		System.setErr(err);
+		log.close();
+		logError.close();
+
+		for (Map.Entry<String, String> property : previousProperties.entrySet()) {
+			if(property.getValue() == null)
+				System.clearProperty(property.getKey());
+			else
+				System.setProperty(property.getKey(), property.getValue());
+		}
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException {
+		exited.await();
+		cleanUp();
+		return exitCode;
+	}
+
+	@Override
+	public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+		if(!exited.await(timeout, unit))
+			return false;
+		cleanUp();
+		return true;
+	}
+
+	@Override
+	public int exitValue() {
+		if(exited.getCount() > 0)
+			throw new IllegalThreadStateException("merlin is running");
+		return exitCode;
+	}
+
+	@Override
+	public boolean isAlive() {
+		return exited.getCount() > 0;
+	}
+
+	@Override
+	public void destroy() {
+		// Same exit code as a process terminated by SIGTERM
+		exit(143);
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		};
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+}
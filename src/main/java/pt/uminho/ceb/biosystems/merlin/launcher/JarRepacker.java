@@ -0,0 +1,272 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Keeps uncompressed (STORED) copies of the jars of the classpath in the launcher cache, so the merlin process
+ * does not inflate every class it loads.
+ * <p>Each jar gets its own copy, with the entries in their original order, so service files, manifests and signatures
+ * keep working and the classpath order is unchanged. Copies are keyed by the size and modification time of their jar:
+ * jars changed by the plugin installer or the dependencies reconciliation are copied again, and copies of jars that
+ * are no longer in the classpath are removed, or left to the {@link DeletionJournal} while they are still open.
+ */
+final class JarRepacker {
+
+	private static final LauncherLog logger = LauncherLog.get(JarRepacker.class);
+
+	// Property of main.conf, the jars are only repacked if it is true
+	public static final String REPACKLIBS = "repacklibs";
+
+	private static final String DIRECTORY = "repack";
+	private static final String MANIFEST = "repack.manifest";
+
+	private JarRepacker(){
+	}
+
+	/** @return true if the configuration enables the repacked jars */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return Boolean.parseBoolean(config.getProperty(REPACKLIBS));
+	}
+
+	/** Manifest line of a copy */
+	private static final class Copy {
+		private final String source;
+		private final long size;
+		private final long lastModified;
+		private final String name;
+
+		private Copy(String source, long size, long lastModified, String name){
+			this.source = source;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Bring the copies up to date with the jars of a classpath
+	 * @param entries - classpath entries
+	 * @return the entries with each jar replaced by its uncompressed copy, or kept if it could not be copied
+	 */
+	public static synchronized List<String> sync(List<String> entries) throws IOException{
+		final File directory = LauncherUtilities.getCacheDirectory(DIRECTORY);
+		File manifestFile = new File(directory, MANIFEST);
+		Map<String, Copy> previous = readManifest(manifestFile);
+
+		final Map<String, Copy> current = new HashMap<String, Copy>();
+		List<Copy> toRepack = new ArrayList<Copy>();
+
+		for (String entry : entries) {
+			File jar = new File(entry);
+			if(!entry.toLowerCase().endsWith(".jar") || !jar.isFile())
+				continue;
+
+			Copy copy = previous.get(entry);
+			if(copy == null || copy.size != jar.length() || copy.lastModified != jar.lastModified() || !new File(directory, copy.name).isFile()){
+				copy = new Copy(entry, jar.length(), jar.lastModified(), getCopyName(jar));
+				toRepack.add(copy);
+			}
+			current.put(entry, copy);
+		}
+
+		if(!toRepack.isEmpty())
+			repackAll(directory, toRepack, current);
+
+		// Copies of jars no longer in the classpath
+		Set<String> names = new HashSet<String>();
+		for (Copy copy : current.values())
+			names.add(copy.name);
+		List<String> deferred = new ArrayList<String>();
+		File[] files = directory.listFiles();
+		if(files != null)
+			for (File file : files)
+				if(!file.getName().equals(MANIFEST) && !names.contains(file.getName())) {
+					try {
+						Files.deleteIfExists(file.toPath());
+					}
+					catch (IOException e) {
+						// On Windows a copy still open by a standby or in-process merlin can not be deleted yet
+						deferred.add(file.getPath());
+					}
+				}
+		if(!deferred.isEmpty()) {
+			logger.warn("repack.delete.deferred", "files", deferred.size());
+			try {
+				DeletionJournal.append(deferred);
+			}
+			catch (IOException e) {
+				logger.warn("repack.delete.failed", "error", e.getMessage());
+			}
+		}
+
+		if(!toRepack.isEmpty() || current.size() != previous.size())
+			writeManifest(manifestFile, current);
+
+		List<String> repacked = new ArrayList<String>(entries.size());
+		for (String entry : entries) {
+			Copy copy = current.get(entry);
+			repacked.add(copy == null ? entry : new File(directory, copy.name).getPath());
+		}
+		return repacked;
+	}
+
+	private static void repackAll(final File directory, List<Copy> toRepack, Map<String, Copy> current) throws IOException{
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (final Copy copy : toRepack)
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return repack(new File(copy.source), new File(directory, copy.name));
+					}
+				}));
+
+			for (int i = 0; i < toRepack.size(); i++)
+				if(!results.get(i).get())
+					current.remove(toRepack.get(i).source);
+
+			logger.info("repack.done", "jars", toRepack.size());
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Name of the copy, unique for each path of the original jar */
+	private static String getCopyName(File jar) throws IOException{
+		try {
+			byte[] path = jar.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			String hash = LauncherUtilities.toHex(MessageDigest.getInstance("SHA-1").digest(path)).substring(0, 8);
+			String name = jar.getName();
+			return name.substring(0, name.length() - 4) + "-" + hash + ".jar";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Copy a jar with every entry STORED
+	 * @param jar - original jar
+	 * @param copy - uncompressed copy
+	 * @return false if the jar could not be copied, merlin then uses the original
+	 */
+	private static boolean repack(File jar, File copy){
+		File temp = new File(copy.getPath() + ".tmp");
+		byte[] buffer = new byte[64 * 1024];
+
+		try (ZipFile in = new ZipFile(jar);
+				ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+			Enumeration<? extends ZipEntry> entries = in.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+
+				ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.max(0, entry.getSize()));
+				try (InputStream data = in.getInputStream(entry)) {
+					int read;
+					while ((read = data.read(buffer)) > 0)
+						content.write(buffer, 0, read);
+				}
+				byte[] bytes = content.toByteArray();
+
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+
+				ZipEntry stored = new ZipEntry(entry.getName());
+				stored.setMethod(ZipEntry.STORED);
+				stored.setSize(bytes.length);
+				stored.setCompressedSize(bytes.length);
+				stored.setCrc(crc.getValue());
+				stored.setTime(entry.getTime());
+				if(entry.getComment() != null)
+					stored.setComment(entry.getComment());
+
+				out.putNextEntry(stored);
+				out.write(bytes);
+				out.closeEntry();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("repack.failed", "jar", jar.getPath(), "error", e.getMessage());
+			temp.delete();
+			return false;
+		}
+
+		try {
+			Files.move(temp.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			logger.warn("repack.failed", "jar", jar.getPath(), "error", e.getMessage());
+			temp.delete();
+			return false;
+		}
+	}
+
+	private static Map<String, Copy> readManifest(File manifestFile){
+		Map<String, Copy> manifest = new HashMap<String, Copy>();
+		if(!manifestFile.isFile())
+			return manifest;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if(fields.length == 4)
+					manifest.put(fields[0], new Copy(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			// Everything is repacked again
+			manifest.clear();
+		}
+		return manifest;
+	}
+
+	private static void writeManifest(File manifestFile, Map<String, Copy> copies) throws IOException{
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(manifestFile))) {
+			for (Copy copy : copies.values()) {
+				writer.write(copy.source + "\t" + copy.size + "\t" + copy.lastModified + "\t" + copy.name);
+				writer.newLine();
+			}
+		}
+	}
+}
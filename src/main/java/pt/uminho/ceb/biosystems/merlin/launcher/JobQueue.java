@@ -0,0 +1,170 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jobs of the worker pool, one per line of a text file (blank lines and lines starting with # are ignored).
+ * <p>A worker claims the first free job: its line becomes <code>@claimed&lt;TAB&gt;owner&lt;TAB&gt;job</code>, the
+ * owner being the process and host of the launcher and the worker, and the line is only removed once the job is
+ * finished, so a job taken by a launcher that crashed is not lost. Claims of a launcher of this host that is no longer
+ * running are released when the next job is taken. The file is rewritten through a temporary file that replaces it
+ * atomically, while holding a lock on a separate file, so the queue can be shared by launchers in other JVMs and jobs
+ * can be appended while the pool runs.
+ */
+final class JobQueue {
+
+	private static final LauncherLog logger = LauncherLog.get(JobQueue.class);
+
+	private static final String CLAIMED = "@claimed\t";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	// Process and host of this launcher, "pid@host"
+	private static final String LAUNCHER = ManagementFactory.getRuntimeMXBean().getName();
+
+	// File locks are held by the JVM, the workers of this launcher also take turns on this lock
+	private static final Object LOCK = new Object();
+
+	private final File file;
+
+	public JobQueue(File file){
+		this.file = file;
+	}
+
+	/**
+	 * Claim the next job of the queue
+	 * @param worker - id of the worker, part of the owner of the claim
+	 * @return the job, null if there is no free job
+	 */
+	public String take(int worker) throws IOException{
+		synchronized (LOCK) {
+			if(!file.isFile())
+				return null;
+
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lockChannel.lock();
+				try {
+					List<String> lines = read();
+
+					// Comments and the other jobs are written back in order
+					String job = null;
+					boolean changed = false;
+					for (int i = 0; i < lines.size(); i++) {
+						String line = lines.get(i);
+						if(line.startsWith(CLAIMED)) {
+							String[] claim = line.split("\t", 3);
+							if(claim.length == 3 && !isOwnerAlive(claim[1])) {
+								logger.warn("worker.job.released", "job", claim[2], "owner", claim[1]);
+								lines.set(i, line = claim[2]);
+								changed = true;
+							}
+						}
+						if(job == null && !line.trim().isEmpty() && !line.trim().startsWith("#") && !line.startsWith(CLAIMED)) {
+							job = line.trim();
+							lines.set(i, CLAIMED + getOwner(worker) + "\t" + job);
+							changed = true;
+						}
+					}
+
+					if(changed)
+						write(lines);
+					return job;
+				}
+				finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a finished job from the queue
+	 * @param worker - id of the worker that claimed the job
+	 * @param job - the job
+	 */
+	public void complete(int worker, String job) throws IOException{
+		synchronized (LOCK) {
+			if(!file.isFile())
+				return;
+
+			try (FileChannel lockChannel = openLock()) {
+				FileLock lock = lockChannel.lock();
+				try {
+					List<String> lines = read();
+					if(lines.remove(CLAIMED + getOwner(worker) + "\t" + job))
+						write(lines);
+					else
+						logger.warn("worker.job.claim.missing", "worker", worker, "job", job, "queue", file.getPath());
+				}
+				finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	private static String getOwner(int worker){
+		return LAUNCHER + "/" + worker;
+	}
+
+	/** @return false only for a launcher of this host whose process is gone; true if it can not be known */
+	private static boolean isOwnerAlive(String owner){
+		int at = owner.indexOf('@');
+		int slash = owner.lastIndexOf('/');
+		if(at < 0 || slash < at)
+			return true;
+
+		// Only the processes of this host can be checked, through /proc
+		String host = owner.substring(at + 1, slash);
+		if(!LAUNCHER.endsWith("@" + host) || !new File("/proc/self").isDirectory())
+			return true;
+		return new File("/proc/" + owner.substring(0, at)).isDirectory();
+	}
+
+	private FileChannel openLock() throws IOException{
+		return FileChannel.open(new File(file.getPath() + LOCK_SUFFIX).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	private List<String> read() throws IOException{
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		List<String> lines = new ArrayList<String>();
+		for (String line : content.split("\r?\n"))
+			lines.add(line);
+		// The split keeps a single empty line for an empty file
+		if(lines.size() == 1 && lines.get(0).isEmpty())
+			lines.clear();
+		return lines;
+	}
+
+	/** Replace the file at once, a crash leaves either the old or the new queue */
+	private void write(List<String> lines) throws IOException{
+		File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+		try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			StringBuilder content = new StringBuilder();
+			for (String line : lines)
+				content.append(line).append('\n');
+			ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+}
@@ -0,0 +1,212 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Capabilities of the JRE used to launch merlin: its feature release and the -XX flags it accepts.
+ * <p>The JRE is probed once with <code>-XX:+PrintFlagsFinal -version</code>, and the result is kept in the launcher
+ * cache for the path and modification time of the JRE binary, so it is probed again only when the JRE is replaced.
+ */
+final class JreCapabilities {
+
+	private static final LauncherLog logger = LauncherLog.get(JreCapabilities.class);
+
+	private static final String DIRECTORY = "jre";
+	private static final String VERSION_KEY = "version=";
+
+	// Probed JREs <JRE command, Capabilities>
+	private static final Map<String, JreCapabilities> probed = new ConcurrentHashMap<String, JreCapabilities>();
+
+	private static final Pattern VERSION = Pattern.compile("version \"(1\\.)?(\\d+)");
+	// "     bool UseZGC          = false          {experimental} {default}", the separator is := when set on the command line
+	private static final Pattern FLAG = Pattern.compile("^\\s*\\S+\\s+(\\w+)\\s+:?=.*?\\{([\\w ]+)\\}");
+
+	private final String jre;
+	private final File binary;
+	private final long binaryModified;
+	private final int majorVersion;
+
+	// Flags of the JRE <Name, Category (product, experimental, diagnostic...)>, empty if they could not be listed
+	private final Map<String, String> flags;
+
+	private JreCapabilities(String jre, File binary, int majorVersion, Map<String, String> flags){
+		this.jre = jre;
+		this.binary = binary;
+		this.binaryModified = binary == null ? 0 : binary.lastModified();
+		this.majorVersion = majorVersion;
+		this.flags = Collections.unmodifiableMap(flags);
+	}
+
+	/**
+	 * Get the capabilities of a JRE, probing it if it was not probed since its binary last changed
+	 * @param jre - command used to start the JRE
+	 * @return the capabilities of the JRE
+	 */
+	public static JreCapabilities of(String jre){
+		File binary = resolve(jre);
+		JreCapabilities capabilities = probed.get(jre);
+		if(capabilities != null && (binary == null || binary.equals(capabilities.binary) && binary.lastModified() == capabilities.binaryModified))
+			return capabilities;
+
+		File cache = binary == null ? null : getCacheFile(binary);
+		capabilities = cache == null ? null : read(jre, binary, cache);
+		if(capabilities == null) {
+			capabilities = probe(jre, binary);
+			// A failed probe is tried again on the next launch
+			if(cache != null && capabilities.majorVersion > 0)
+				write(capabilities, cache);
+		}
+		probed.put(jre, capabilities);
+		return capabilities;
+	}
+
+	/** @return the binary of a JRE command, searched in the PATH if it is a name; null if not found */
+	private static File resolve(String jre){
+		if(jre == null)
+			return null;
+		File file = new File(jre);
+		if(jre.contains("/") || jre.contains(File.separator))
+			return file.isFile() ? file.getAbsoluteFile().toPath().normalize().toFile() : null;
+
+		String path = System.getenv("PATH");
+		if(path == null)
+			return null;
+		for (String folder : path.split(File.pathSeparator))
+			for (String name : new String[]{jre, jre + ".exe"}) {
+				File candidate = new File(folder, name);
+				if(candidate.isFile() && candidate.canExecute())
+					return candidate.getAbsoluteFile();
+			}
+		return null;
+	}
+
+	/** File of the cached probe, named after the path and the modification time of the binary */
+	private static File getCacheFile(File binary){
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((binary.getPath() + "\n" + binary.lastModified()).getBytes(StandardCharsets.UTF_8));
+			return new File(new File(LauncherUtilities.CACHE_PATH, DIRECTORY), LauncherUtilities.toHex(digest.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private static JreCapabilities read(String jre, File binary, File cache){
+		if(!cache.isFile())
+			return null;
+		try {
+			List<String> lines = Files.readAllLines(cache.toPath(), StandardCharsets.UTF_8);
+			if(lines.isEmpty() || !lines.get(0).startsWith(VERSION_KEY))
+				return null;
+			int version = Integer.parseInt(lines.get(0).substring(VERSION_KEY.length()));
+			Map<String, String> flags = new HashMap<String, String>();
+			for (String line : lines.subList(1, lines.size())) {
+				int tab = line.indexOf('\t');
+				if(tab > 0)
+					flags.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+			return new JreCapabilities(jre, binary, version, flags);
+		}
+		catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void write(JreCapabilities capabilities, File cache){
+		List<String> lines = new ArrayList<String>();
+		lines.add(VERSION_KEY + capabilities.majorVersion);
+		for (Map.Entry<String, String> flag : capabilities.flags.entrySet())
+			lines.add(flag.getKey() + "\t" + flag.getValue());
+		try {
+			LauncherUtilities.getCacheDirectory(DIRECTORY);
+			Files.write(cache.toPath(), lines, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			logger.warn("jre.cache.save.failed", "file", cache, "error", e.getMessage());
+		}
+	}
+
+	/**
+	 * Run <code>jre -XX:+PrintFlagsFinal -version</code>, with the experimental and diagnostic flags unlocked,
+	 * and read the feature release number and the flags
+	 */
+	private static JreCapabilities probe(String jre, File binary){
+		int version = 0;
+		Map<String, String> flags = new HashMap<String, String>();
+		try {
+			Process process = new ProcessBuilder(jre, "-XX:+UnlockDiagnosticVMOptions", "-XX:+UnlockExperimentalVMOptions",
+					"-XX:+PrintFlagsFinal", "-version").redirectErrorStream(true).start();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					Matcher m = VERSION.matcher(line);
+					if(version == 0 && m.find())
+						version = Integer.parseInt(m.group(2));
+					else if((m = FLAG.matcher(line)).find())
+						flags.put(m.group(1), m.group(2).trim());
+				}
+			}
+			process.waitFor();
+			logger.info("jre.probed", "jre", jre, "version", version, "flags", flags.size());
+		} catch (IOException e) {
+			logger.warn("jre.probe.failed", "jre", jre, "error", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return new JreCapabilities(jre, binary, version, flags);
+	}
+
+	public String getJRE() {
+		return jre;
+	}
+
+	/** @return the binary of the JRE, null if it was not found */
+	public File getBinary() {
+		return binary;
+	}
+
+	/** @return the feature release of the JRE (8, 11, 17...), 0 if unknown */
+	public int getMajorVersion() {
+		return majorVersion;
+	}
+
+	/** @return true if the JRE can create and use dynamic CDS archives (JDK 13+) */
+	public boolean supportsDynamicArchive() {
+		return majorVersion >= 13;
+	}
+
+	/** @return true if the flags of the JRE are known */
+	public boolean hasFlags() {
+		return !flags.isEmpty();
+	}
+
+	/**
+	 * @param name - name of a -XX flag, without the +/- or the value
+	 * @return true if the JRE has the flag, or if its flags are not known
+	 */
+	public boolean supportsFlag(String name) {
+		return flags.isEmpty() || flags.containsKey(name);
+	}
+
+	/**
+	 * @param name - name of a -XX flag
+	 * @return the category of the flag (product, experimental, diagnostic...), null if the JRE does not have it
+	 */
+	public String getFlagCategory(String name) {
+		return flags.get(name);
+	}
+}
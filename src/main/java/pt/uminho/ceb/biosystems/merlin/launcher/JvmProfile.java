@@ -0,0 +1,186 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named sets of JVM flags for the merlin process, and the checking of the JVM flags against the JRE.
+ * <p>The <code>jvmProfile</code> property of main.conf selects a profile (<code>throughput</code>,
+ * <code>low-latency</code>, <code>low-memory</code> or <code>fast-startup</code>) whose collector, heap and JIT
+ * flags come before the JAVA_PARAM flags; class data sharing is left to the <code>cds</code> property. A profile flag is left out when JAVA_PARAM sets the same
+ * flag, another collector or, for the heap flags, when JAVA_PARAM or the heap sizing set the heap.
+ * <p>Unless <code>jvmFlagCheck</code> is false, -XX flags the JRE does not have are translated to an equivalent
+ * (<code>MaxRAMPercentage</code> to <code>MaxRAMFraction</code> on older Java 8, ZGC or Shenandoah to G1) or dropped,
+ * and experimental or diagnostic flags are unlocked, so an unsupported flag does not stop merlin from starting.
+ */
+final class JvmProfile {
+
+	private static final LauncherLog logger = LauncherLog.get(JvmProfile.class);
+
+	// Properties of main.conf
+	public static final String JVMPROFILE = "jvmProfile";
+	public static final String JVMFLAGCHECK = "jvmFlagCheck";
+
+	// Profiles <Name, Flags>
+	private static final Map<String, List<String>> PROFILES;
+	static {
+		Map<String, List<String>> profiles = new LinkedHashMap<String, List<String>>();
+		profiles.put("throughput", Arrays.asList("-XX:+UseParallelGC", "-XX:MaxRAMPercentage=50", "-XX:+AlwaysPreTouch"));
+		profiles.put("low-latency", Arrays.asList("-XX:+UseZGC", "-XX:MaxGCPauseMillis=50", "-XX:MaxRAMPercentage=50"));
+		profiles.put("low-memory", Arrays.asList("-XX:+UseSerialGC", "-XX:MaxRAMPercentage=25", "-XX:MinHeapFreeRatio=10",
+				"-XX:MaxHeapFreeRatio=20", "-XX:ReservedCodeCacheSize=64m", "-Xss512k"));
+		profiles.put("fast-startup", Arrays.asList("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-XX:-UsePerfData"));
+		PROFILES = Collections.unmodifiableMap(profiles);
+	}
+
+	private static final Set<String> HEAP_FLAGS = new HashSet<String>(Arrays.asList("-Xmx", "-Xms", "MaxHeapSize",
+			"InitialHeapSize", "MaxRAMPercentage", "InitialRAMPercentage", "MinRAMPercentage", "MaxRAMFraction",
+			"InitialRAMFraction", "MinRAMFraction"));
+
+	// Flags of Java 8 before update 191 <Flag, Replacement>, the percentage becomes the fraction of the memory
+	private static final Map<String, String> RAM_FRACTIONS = new LinkedHashMap<String, String>();
+	static {
+		RAM_FRACTIONS.put("MaxRAMPercentage", "MaxRAMFraction");
+		RAM_FRACTIONS.put("InitialRAMPercentage", "InitialRAMFraction");
+		RAM_FRACTIONS.put("MinRAMPercentage", "MinRAMFraction");
+	}
+
+	private static final String UNLOCK_EXPERIMENTAL = "-XX:+UnlockExperimentalVMOptions";
+	private static final String UNLOCK_DIAGNOSTIC = "-XX:+UnlockDiagnosticVMOptions";
+
+	private JvmProfile(){
+	}
+
+	/**
+	 * JVM flags of the merlin process: the flags of the profile followed by the JAVA_PARAM flags, checked against the JRE
+	 * @param properties - properties of the configuration
+	 * @param javaArgs - JAVA_PARAM flags
+	 * @param jre - command used to start the JRE
+	 * @return the flags
+	 */
+	static List<String> getJavaArgs(PropertyValues properties, List<String> javaArgs, String jre){
+		List<String> args = new ArrayList<String>();
+
+		String name = properties.get(JVMPROFILE);
+		if(name != null && !name.trim().isEmpty()) {
+			List<String> profile = PROFILES.get(name.trim().toLowerCase());
+			if(profile == null)
+				logger.warn("property.invalid", "name", JVMPROFILE, "value", name, "profiles", PROFILES.keySet());
+			else
+				args.addAll(getProfileArgs(profile, javaArgs, "auto".equalsIgnoreCase(properties.get(HeapSizing.HEAPSIZING))));
+		}
+		args.addAll(javaArgs);
+
+		if("false".equalsIgnoreCase(properties.get(JVMFLAGCHECK)))
+			return args;
+		return adapt(args, JreCapabilities.of(jre));
+	}
+
+	/** Flags of a profile that JAVA_PARAM and the heap sizing do not set */
+	private static List<String> getProfileArgs(List<String> profile, List<String> javaArgs, boolean heapSizing){
+		Set<String> userFlags = new HashSet<String>();
+		boolean userCollector = false, userHeap = heapSizing;
+		for (String arg : javaArgs) {
+			String flag = getFlag(arg);
+			if(flag != null) {
+				userFlags.add(flag);
+				userCollector |= isCollector(flag);
+				userHeap |= HEAP_FLAGS.contains(flag);
+			}
+		}
+
+		List<String> args = new ArrayList<String>();
+		for (String arg : profile) {
+			String flag = getFlag(arg);
+			if(!userFlags.contains(flag) && !(userCollector && isCollector(flag)) && !(userHeap && HEAP_FLAGS.contains(flag)))
+				args.add(arg);
+		}
+		return args;
+	}
+
+	/** @return the name of a -XX flag, the option of a -X flag (-Xmx, -Xss, -Xshare), null for other arguments */
+	static String getFlag(String arg){
+		if(arg.startsWith("-XX:")) {
+			String flag = arg.substring(4);
+			if(flag.startsWith("+") || flag.startsWith("-"))
+				flag = flag.substring(1);
+			int equals = flag.indexOf('=');
+			return equals < 0 ? flag : flag.substring(0, equals);
+		}
+		if(arg.startsWith("-Xmx") || arg.startsWith("-Xms") || arg.startsWith("-Xss"))
+			return arg.substring(0, 4);
+		if(arg.startsWith("-Xshare"))
+			return "-Xshare";
+		return null;
+	}
+
+	private static boolean isCollector(String flag){
+		return flag.startsWith("Use") && flag.endsWith("GC") && !flag.equals("UseAdaptiveSizePolicyWithSystemGC");
+	}
+
+	/**
+	 * Translate or drop the -XX flags the JRE does not have, and unlock the experimental and diagnostic ones
+	 * @param args - JVM flags
+	 * @param jre - capabilities of the JRE
+	 * @return the flags the JRE accepts, unchanged if its flags are not known
+	 */
+	static List<String> adapt(List<String> args, JreCapabilities jre){
+		if(!jre.hasFlags())
+			return args;
+
+		List<String> adapted = new ArrayList<String>();
+		boolean experimental = false, diagnostic = false;
+		for (String arg : args) {
+			String flag = arg.startsWith("-XX:") ? getFlag(arg) : null;
+			if(flag == null || arg.equals(UNLOCK_EXPERIMENTAL) || arg.equals(UNLOCK_DIAGNOSTIC)) {
+				adapted.add(arg);
+				continue;
+			}
+
+			String translated = jre.supportsFlag(flag) ? arg : translate(arg, flag, jre);
+			if(translated == null) {
+				logger.warn("jvm.flag.dropped", "flag", arg, "jre", jre.getJRE(), "version", jre.getMajorVersion());
+				continue;
+			}
+			if(!translated.equals(arg))
+				logger.info("jvm.flag.translated", "flag", arg, "to", translated, "jre", jre.getJRE());
+
+			String category = jre.getFlagCategory(getFlag(translated));
+			experimental |= category != null && category.contains("experimental");
+			diagnostic |= category != null && category.contains("diagnostic");
+			adapted.add(translated);
+		}
+
+		// The unlock flags must come before the flags they unlock
+		if(diagnostic && !adapted.contains(UNLOCK_DIAGNOSTIC))
+			adapted.add(0, UNLOCK_DIAGNOSTIC);
+		if(experimental && !adapted.contains(UNLOCK_EXPERIMENTAL))
+			adapted.add(0, UNLOCK_EXPERIMENTAL);
+		return adapted;
+	}
+
+	/** @return an equivalent flag the JRE has, null if there is none */
+	private static String translate(String arg, String flag, JreCapabilities jre){
+		String fraction = RAM_FRACTIONS.get(flag);
+		if(fraction != null && jre.supportsFlag(fraction)) {
+			try {
+				double percentage = Double.parseDouble(arg.substring(arg.indexOf('=') + 1));
+				if(percentage > 0)
+					return "-XX:" + fraction + "=" + Math.max(1, Math.round(100 / percentage));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		// The collectors with short pauses of newer JREs
+		if((flag.equals("UseZGC") || flag.equals("UseShenandoahGC")) && arg.startsWith("-XX:+") && jre.supportsFlag("UseG1GC"))
+			return "-XX:+UseG1GC";
+		return null;
+	}
+}
@@ -0,0 +1,146 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the launch configuration compiled from a properties file.
+ * <p>The snapshot remembers the modification time and size of the main configuration file, of every
+ * referenced <code>propertiesFILE</code> and of the JRE binary the JVM flags were checked against, and is only
+ * recompiled when one of them changes.
+ */
+final class LaunchConfiguration {
+
+	// Compiled snapshots <Path of XML file, Snapshot>
+	private static final Map<String, LaunchConfiguration> cache = new ConcurrentHashMap<String, LaunchConfiguration>();
+
+	private final String filePath;
+	private final PropertyValues propertiesDictionary;
+	private final List<String> javaArgs;
+	private final String jre;
+
+	// Files read to build this snapshot <Path, {last modified, length}>
+	private final Map<String, long[]> sources;
+
+	private LaunchConfiguration(String filePath, PropertiesManager propManager){
+		this.filePath = filePath;
+		this.propertiesDictionary = new PropertyValues(propManager.getPropertyValues());
+		this.jre = propManager.getJRE();
+		this.javaArgs = Collections.unmodifiableList(JvmProfile.getJavaArgs(propertiesDictionary, propManager.getJavaArgsOS(), jre));
+
+		Map<String, long[]> sources = new LinkedHashMap<String, long[]>();
+		sources.put(filePath, stat(new File(filePath)));
+		for (String file : propManager.getReferencedFiles())
+			sources.put(file, stat(new File(file)));
+
+		// The flags were checked against this JRE
+		if(!"false".equalsIgnoreCase(propertiesDictionary.get(JvmProfile.JVMFLAGCHECK))) {
+			File binary = JreCapabilities.of(jre).getBinary();
+			if(binary != null)
+				sources.put(binary.getPath(), stat(binary));
+		}
+		this.sources = Collections.unmodifiableMap(sources);
+	}
+
+	/**
+	 * Get the compiled configuration of a file, compiling it again only if the file or any file it references changed
+	 * @param filePath - Path and Name of file with properties
+	 * @return the current snapshot
+	 * @throws FileNotFoundException
+	 */
+	public static LaunchConfiguration get(String filePath) throws FileNotFoundException{
+		LaunchConfiguration config = cache.get(filePath);
+
+		if(config == null || config.isStale()){
+			config = compile(filePath);
+			cache.put(filePath, config);
+		}
+		return config;
+	}
+
+	/**
+	 * Parse the file and build a new snapshot, bypassing the cache
+	 * @param filePath - Path and Name of file with properties
+	 * @return the new snapshot
+	 * @throws FileNotFoundException
+	 */
+	public static LaunchConfiguration compile(String filePath) throws FileNotFoundException{
+		PropertiesManager propManager = new PropertiesManager(filePath);
+		propManager.loadProperties();
+		return new LaunchConfiguration(filePath, propManager);
+	}
+
+	/** @return true if any of the files used to build this snapshot changed since */
+	public boolean isStale(){
+		for (Map.Entry<String, long[]> source : sources.entrySet()) {
+			long[] current = stat(new File(source.getKey()));
+			if(current[0] != source.getValue()[0] || current[1] != source.getValue()[1])
+				return true;
+		}
+		return false;
+	}
+
+	/** @return the main configuration file, the files it references and the JRE binary the flags were checked against */
+	public Set<String> getSources(){
+		return sources.keySet();
+	}
+
+	private static long[] stat(File file){
+		// lastModified and length are 0 for files that do not exist
+		return new long[]{file.lastModified(), file.length()};
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	/** @return a new map with the values of each property joined */
+	public Map<String, String> getPropertiesDictionary() {
+		return Collections.unmodifiableMap(propertiesDictionary.toMap());
+	}
+
+	/** @return the values of a property, empty if it is not defined */
+	public List<String> getValues(String key) {
+		return propertiesDictionary.getValues(key);
+	}
+
+	public String getProperty(String key) {
+		return propertiesDictionary.get(key);
+	}
+
+	/** @return the JVM flags of the profile and of JAVA_PARAM, checked against the JRE */
+	public List<String> getJavaArgsOS() {
+		return javaArgs;
+	}
+
+	public String getJRE() {
+		return jre;
+	}
+
+	/**
+	 * Get the restart signal defined in the configuration
+	 * @param defaultSignal - signal to use when the property is not defined
+	 * @return the restart signal
+	 */
+	public int getRestartSignal(int defaultSignal){
+		String restart = propertiesDictionary.get(PropertiesManager.RESTART);
+		return (restart != null) ? Integer.parseInt(restart) : defaultSignal;
+	}
+
+	/**
+	 * Set Properties of the snapshot in the Environment of the ProcessBuilder
+	 * @param pb - ProcessBuilder where the Properties will be set
+	 */
+	public void setPropertiesInEnvironment(ProcessBuilder pb){
+		// Values are only joined here
+		Map<String, String> environment = pb.environment();
+		for (String property : propertiesDictionary.keySet())
+			environment.put(property, propertiesDictionary.get(property));
+	}
+}
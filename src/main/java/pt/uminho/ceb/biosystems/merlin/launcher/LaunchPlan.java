@@ -0,0 +1,188 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything needed to start the next merlin process, computed ahead of the restart: the configuration, the command,
+ * the environment, the classpath, the logs and plugins folders and the planned deletions.
+ * <p>A plan is immutable, so one computed by the watcher thread can be published to the launch cycle as it is.
+ * <p>A plan records the state of the files it was computed from (the configuration files, <code>lib</code>,
+ * <code>plugins_install</code>, <code>plugins_bin</code>, the lists of files to delete and the class data sharing
+ * archive) before computing anything, and is only used while they are unchanged.
+ * The heap and collector flags are left out, they depend on the peak memory and the GC log of the cycle that just ended
+ * and are computed at start.
+ */
+final class LaunchPlan {
+
+	private final LaunchConfiguration config;
+	private final Locations locations;
+	private final List<String> commandPrefix;
+	private final List<String> commandSuffix;
+	private final int instances;
+	private final Map<String, String> environment;
+	private final List<String> classpath;
+	private final List<String> extraFiles;
+	private final List<String> filesToDelete;
+
+	// Files the plan depends on <Path, {last modified, length}>
+	private final Map<String, long[]> inputs;
+
+	/**
+	 * @param config - launch configuration
+	 * @param inputs - state of the inputs, recorded by {@link #snapshot(List)} before the plan was computed
+	 * @param locations - launcher class, logs and plugins folders
+	 * @param commandPrefix - command before the heap flags, null for the in-process mode
+	 * @param commandSuffix - command after the heap flags, null for the in-process mode
+	 * @param instances - number of merlin processes sharing the memory of the host
+	 * @param classpath - classpath entries of merlin
+	 * @param extraFiles - files of the other operating systems, to delete
+	 * @param filesToDelete - files of the deletefiles and deletefileslist properties, to delete
+	 */
+	LaunchPlan(LaunchConfiguration config, Map<String, long[]> inputs, Locations locations, List<String> commandPrefix,
+			List<String> commandSuffix, int instances, List<String> classpath, List<String> extraFiles, List<String> filesToDelete){
+		this.config = config;
+		this.locations = locations;
+		this.inputs = inputs;
+		this.commandPrefix = commandPrefix == null ? null : Collections.unmodifiableList(commandPrefix);
+		this.commandSuffix = commandSuffix == null ? null : Collections.unmodifiableList(commandSuffix);
+		this.instances = instances;
+		this.environment = Collections.unmodifiableMap(new LinkedHashMap<String, String>(config.getPropertiesDictionary()));
+		this.classpath = Collections.unmodifiableList(new ArrayList<String>(classpath));
+		this.extraFiles = Collections.unmodifiableList(new ArrayList<String>(extraFiles));
+		this.filesToDelete = Collections.unmodifiableList(new ArrayList<String>(filesToDelete));
+	}
+
+	/** Launcher class, logs and plugins folders of a configuration */
+	static final class Locations {
+		final String aibenchLauncher;
+		final String log;
+		final String logError;
+		final String pluginsBin;
+		final String pluginsInstall;
+
+		Locations(String aibenchLauncher, String log, String logError, String pluginsBin, String pluginsInstall){
+			this.aibenchLauncher = aibenchLauncher;
+			this.log = log;
+			this.logError = logError;
+			this.pluginsBin = pluginsBin;
+			this.pluginsInstall = pluginsInstall;
+		}
+	}
+
+	/**
+	 * Record the state of the inputs of a plan, before it is computed
+	 * @param inputs - files and folders the plan depends on, besides the configuration files
+	 * @return the state of each input
+	 */
+	static Map<String, long[]> snapshot(List<File> inputs){
+		Map<String, long[]> state = new LinkedHashMap<String, long[]>();
+		for (File input : inputs)
+			state.put(input.getPath(), stat(input));
+		return Collections.unmodifiableMap(state);
+	}
+
+	private static long[] stat(File file){
+		// lastModified and length are 0 for files that do not exist
+		return new long[]{file.lastModified(), file.length()};
+	}
+
+	/** @return true if the configuration and the other inputs did not change since the plan was computed */
+	public boolean isCurrent(){
+		if(config.isStale())
+			return false;
+		for (Map.Entry<String, long[]> input : inputs.entrySet()) {
+			long[] current = stat(new File(input.getKey()));
+			if(current[0] != input.getValue()[0] || current[1] != input.getValue()[1])
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the files and folders the plan depends on, besides the configuration files */
+	public List<File> getInputs(){
+		List<File> files = new ArrayList<File>();
+		for (String input : inputs.keySet())
+			files.add(new File(input));
+		return files;
+	}
+
+	/** @return number of merlin processes sharing the memory of the host */
+	public int getInstances() {
+		return instances;
+	}
+
+	public LaunchConfiguration getConfig() {
+		return config;
+	}
+
+	/** @return the command of the merlin process, with the heap and collector flags for this start; null for the in-process mode */
+	public List<String> getCommand(){
+		return getCommand(0);
+	}
+
+	/**
+	 * @param heapRequest - heap merlin asked for in the last cycle in MB, 0 if none
+	 * @return the command of the merlin process, with the heap and collector flags for this start; null for the in-process mode
+	 */
+	public List<String> getCommand(long heapRequest){
+		if(commandPrefix == null)
+			return null;
+		List<String> command = new ArrayList<String>(commandPrefix);
+		command.addAll(GcTuning.getJavaArgs(config, HeapSizing.getJavaArgs(config, instances, heapRequest), instances));
+		command.addAll(commandSuffix);
+		return command;
+	}
+
+	/**
+	 * Set the properties of the configuration in the environment of the merlin process
+	 * @param pb - builder of the merlin process
+	 */
+	public void setEnvironment(ProcessBuilder pb){
+		pb.environment().putAll(environment);
+	}
+
+	/** @return the class that starts merlin */
+	public String getAibenchLauncher() {
+		return locations.aibenchLauncher;
+	}
+
+	/** @return the file of the output of merlin */
+	public String getLog() {
+		return locations.log;
+	}
+
+	/** @return the file of the error output of merlin */
+	public String getLogError() {
+		return locations.logError;
+	}
+
+	/** @return the folder with the installed plugins */
+	public String getPluginsBin() {
+		return locations.pluginsBin;
+	}
+
+	/** @return the folder with the plugins waiting to be installed */
+	public String getPluginsInstall() {
+		return locations.pluginsInstall;
+	}
+
+	/** @return the classpath entries of merlin */
+	public List<String> getClasspath() {
+		return classpath;
+	}
+
+	/** @return the files of the other operating systems, to delete */
+	public List<String> getExtraFiles() {
+		return extraFiles;
+	}
+
+	/** @return the files of the deletefiles and deletefileslist properties, to delete */
+	public List<String> getFilesToDelete() {
+		return filesToDelete;
+	}
+}
@@ -0,0 +1,657 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launch/restart cycle of one merlin process.
+ * <p>The standalone launcher runs a single session. In the worker pool mode each worker is a session with its own
+ * working directory, logs and JVM arguments, and the housekeeping is left to the pool.
+ */
+class LaunchSession {
+
+	private static final LauncherLog logger = LauncherLog.get(LaunchSession.class);
+
+	public static final int DEFAULT_RESTART_SIGNAL = 10;
+	private static final String DELETEFILES = "deletefiles";
+	private static final String DELETEFILESLIST = "deletefileslist";
+	private static final String DEPENDENCIESFILE = "conf/dependenciesfiles";
+	private static final String CRASH_SUFFIX = ".crash";
+	private static final String LOGBACKFILE = "conf/logback.xml";
+
+	private final String mainConfFile;
+
+	// Worker of the pool this session runs, null for the standalone launcher
+	private final WorkerPool.Worker worker;
+
+	// Plan of the next start, computed again by the watcher thread when its inputs change and published here
+	private volatile LaunchPlan plan;
+	private ConfigWatcher watcher;
+
+	// Shared with the merlin process for all the cycles, and the heap it asked for its next start in MB
+	private ControlChannel control;
+	private long heapRequest;
+
+	private static final List<String> EXTRA_FILES_WINDOWS =
+			java.util.Collections.unmodifiableList(java.util.Arrays.asList("merlin.sh",
+					new File(System.getProperty("user.dir")).getParent()+"/MacOS/merlin",
+					new File(System.getProperty("user.dir")).getParent()+"MacOS"));
+
+	private static final List<String> EXTRA_FILES_LINUX =
+			java.util.Collections.unmodifiableList(java.util.Arrays.asList("merlin.bat", "run.bat",
+					new File(System.getProperty("user.dir")).getParent()+"/MacOS/merlin",
+					new File(System.getProperty("user.dir")).getParent()+"MacOS"));
+
+	private static final List<String> EXTRA_FILES_MAC =
+			java.util.Collections.unmodifiableList(java.util.Arrays.asList("merlin.sh", "merlin.bat", "run.bat"));
+
+	/**
+	 * Session of the standalone launcher
+	 * @param mainConfFile - path of the main configuration file
+	 */
+	public LaunchSession(String mainConfFile){
+		this(mainConfFile, null);
+	}
+
+	/**
+	 * Session of a worker of the pool
+	 * @param mainConfFile - path of the main configuration file
+	 * @param worker - worker run by this session, null for the standalone launcher
+	 */
+	LaunchSession(String mainConfFile, WorkerPool.Worker worker){
+		this.mainConfFile = mainConfFile;
+		this.worker = worker;
+	}
+
+	/** @return the launcher class, logs and plugins folders of the configuration, a worker writes its own logs */
+	private LaunchPlan.Locations getExtraConfigInfo(LaunchConfiguration config)
+	{
+		String aibenchLauncher = "es.uvigo.ei.aibench.Launcher";
+		String log = "merlin.log";
+		String logError = "merlin.log.err";
+		String pluginsBin = "plugins_bin";
+		String pluginsInstall = "plugins_install";
+
+
+		if(config.getProperty(PropertiesManager.AIBENCHLAUNCHER) != null)
+			aibenchLauncher = config.getProperty(PropertiesManager.AIBENCHLAUNCHER);
+
+		if(config.getProperty(PropertiesManager.LOG) != null)
+			log = config.getProperty(PropertiesManager.LOG);
+
+		if(config.getProperty(PropertiesManager.LOGERROR) != null)
+			logError = config.getProperty(PropertiesManager.LOGERROR);
+
+		if(config.getProperty(PropertiesManager.PLUGINSBIN) != null)
+			pluginsBin = config.getProperty(PropertiesManager.PLUGINSBIN);
+
+		if(config.getProperty(PropertiesManager.PLUGINSINSTALL) != null)
+			pluginsInstall = config.getProperty(PropertiesManager.PLUGINSINSTALL);
+
+		// Each worker writes its own logs
+		if(worker != null) {
+			log = new File(worker.getWorkDir(), new File(log).getName()).getPath();
+			logError = new File(worker.getWorkDir(), new File(logError).getName()).getPath();
+		}
+		return new LaunchPlan.Locations(aibenchLauncher, log, logError, pluginsBin, pluginsInstall);
+	}
+
+	public int getRestartSignal(){
+		int ret = DEFAULT_RESTART_SIGNAL;
+		try {
+			ret = LaunchConfiguration.get(mainConfFile).getRestartSignal(DEFAULT_RESTART_SIGNAL);
+		} catch (FileNotFoundException e) {
+			logger.warn("config.not.found", "file", mainConfFile);
+		}
+
+		return ret;
+	}
+
+	/** @return the files of the other operating systems to delete, from the configuration or the defaults */
+	private static List<String> defineFilesToDelete(LaunchConfiguration config){
+
+	    OSystem os = PropertiesManager.detectOS();
+	    String property = os.equals(OSystem.LINUX) ? PropertiesManager.DELETELINUXFILES
+	    		: os.equals(OSystem.MACOS) ? PropertiesManager.DELETEMACFILES : PropertiesManager.DELETEWINFILES;
+
+	    String files = config.getProperty(property);
+	    if(files != null)
+	    {
+	    	files = files.replace("USERDIR",new File(System.getProperty("user.dir")).getParent());
+	    	return Arrays.asList(files.split(";"));
+	    }
+
+	    if(os.equals(OSystem.LINUX))
+	    	return EXTRA_FILES_LINUX;
+	    else if (os.equals(OSystem.MACOS))
+	    	return EXTRA_FILES_MAC;
+	    return EXTRA_FILES_WINDOWS;
+	}
+
+	/**
+	 * Run merlin until it exits with a code other than the restart signal
+	 * (for a worker with a job queue, until there are no more jobs)
+	 * @return the last exit code of merlin, for a job queue the first exit code other than 0
+	 */
+	public int run() throws IOException, InterruptedException{
+
+	    int x = getRestartSignal();
+	    int signal = x;
+
+	    // Process already started by the warm standby for the next cycle, and the command it was started with
+	    Process proc = null;
+	    List<String> procCommand = null;
+
+	    // Job of a worker, kept when merlin restarts
+	    String job = null;
+	    int jobsExitCode = 0;
+
+	    do{
+	    	CycleMetrics metrics = new CycleMetrics();
+	    	long phase = System.nanoTime();
+
+	    	// Usually computed while the last merlin process was running, only checked here
+	    	LaunchPlan plan = getPlan();
+	    	LaunchConfiguration config = plan.getConfig();
+	    	String log = plan.getLog();
+	    	String logError = plan.getLogError();
+	    	LauncherLog.configure(config);
+	    	watch(plan);
+
+		    if(worker != null && job == null && worker.getJobQueue() != null) {
+		    	job = worker.getJobQueue().take(worker.getId());
+		    	if(job == null) {
+		    		closeWatcher();
+		    		return jobsExitCode;
+		    	}
+		    	logger.info("worker.job.start", "worker", worker.getId(), "job", job);
+		    }
+
+		    // Merlin runs in this JVM, in a new class loader, instead of a new process
+		    List<String> command = plan.getCommand(heapRequest);
+		    boolean inProcess = command == null;
+
+		    // The heap and collector of a released standby are the ones of the cycle that started it
+		    List<String> running = proc != null && procCommand != null ? procCommand : command;
+		    procCommand = null;
+
+		    // Merlin in this JVM is not watched through the file
+		    if(control == null && !inProcess && ControlChannel.isEnabled(config))
+		    	control = ControlChannel.open(worker == null ? "control.bin" : "control-" + worker.getId() + ".bin");
+		    ControlChannel channel = inProcess || !ControlChannel.isEnabled(config) ? null : control;
+
+		    LauncherUtilities.setRestartSignal(config.getRestartSignal(DEFAULT_RESTART_SIGNAL));
+		    metrics.record(CycleMetrics.CONFIG_LOAD, phase);
+
+		    // The housekeeping of the workers is done by the pool
+		    HousekeepingScheduler housekeeping = new HousekeepingScheduler(metrics);
+		    if(worker == null)
+		    	addHousekeeping(housekeeping, plan, proc == null);
+
+		    if(proc == null && inProcess) {
+		    	housekeeping.run(HousekeepingScheduler.Phase.BEFORE_CHILD_START);
+
+		    	phase = System.nanoTime();
+		    	proc = InProcessChild.start(plan.getClasspath(), plan.getAibenchLauncher(), new String[]{plan.getPluginsBin()}, config, log, logError);
+		    	metrics.record(CycleMetrics.PROCESS_START, phase);
+		    }
+		    else if(proc == null) {
+		    	// Command and environment properties of the plan
+		    	ProcessBuilder pb = new ProcessBuilder(command);
+		    	plan.setEnvironment(pb);
+		    	if(worker != null)
+		    		worker.setEnvironment(pb, job);
+		    	if(channel != null)
+		    		channel.reset(pb);
+
+		    	housekeeping.run(HousekeepingScheduler.Phase.BEFORE_CHILD_START);
+
+		    	// The log pump reads the output through pipes
+		    	if(!ChildOutputPump.isEnabled(config)) {
+		    		pb.redirectOutput(new File(log));
+		    		pb.redirectError(new File(logError));
+		    	}
+		    	phase = System.nanoTime();
+		    	proc = pb.start();
+		    	metrics.record(CycleMetrics.PROCESS_START, phase);
+		    }
+
+		    housekeeping.start(HousekeepingScheduler.Phase.ANYTIME);
+
+		    ChildOutputPump output = null;
+		    if(!inProcess && ChildOutputPump.isEnabled(config))
+		    	output = ChildOutputPump.start(proc, config, log, logError);
+
+		    // Samples the process, the memory it used outside the heap also bounds the heap of the next cycles
+		    ResourceSupervisor supervisor = inProcess ? null : ResourceSupervisor.start(proc, config);
+
+		    if(channel != null)
+		    	channel.start(proc, config);
+
+		    // The GC log of the process tunes the heap and the collector of the next cycles
+		    GcTuning gcTuning = inProcess || !GcTuning.isEnabled(config) ? null
+		    		: GcTuning.start(config, running, proc, logError, plan.getInstances());
+
+		    WarmStandby standby = null;
+		    if(!inProcess && worker == null && WarmStandby.isEnabled(config))
+		    	standby = WarmStandby.spawn(config, command, log, logError, output != null, channel);
+
+		    phase = System.nanoTime();
+		    x = proc.waitFor();
+		    proc = null;
+		    metrics.record(CycleMetrics.CHILD_LIFETIME, phase);
+
+		    if(supervisor != null) {
+		    	supervisor.stop();
+
+		    	// Terminated by the supervisor policy, started again as if it had asked for a restart
+		    	if(supervisor.isRestartRequested())
+		    		x = LauncherUtilities.getRestartSignal();
+
+		    	supervisor.writeSummary(x);
+		    	if(HeapSizing.isEnabled(config))
+		    		HeapSizing.recordPeakRss(supervisor.getPeakRss(), running);
+		    }
+
+		    // Terminated after it stopped sending heartbeats, started again
+		    if(channel != null) {
+		    	channel.stop();
+		    	if(channel.isRestartRequested())
+		    		x = LauncherUtilities.getRestartSignal();
+		    }
+
+		    if(output != null) {
+		    	output.await();
+		    	if(x != 0 && x != LauncherUtilities.getRestartSignal())
+		    		output.dumpTail(new File(log + CRASH_SUFFIX));
+		    }
+
+		    // After the output pump, the error log is complete
+		    if(gcTuning != null)
+		    	gcTuning.finish(x);
+
+		    // Requests of merlin for its next start, a worker with jobs restarts merlin for the next job anyway
+		    heapRequest = channel == null ? 0 : channel.getHeapRequest();
+		    if(channel != null && channel.isRestartAfterJob() && x != LauncherUtilities.getRestartSignal()
+		    		&& (worker == null || worker.getJobQueue() == null)) {
+		    	logger.info("restart.requested", "exit_code", x);
+		    	x = LauncherUtilities.getRestartSignal();
+		    }
+
+		    // Release the standby right away unless there is housekeeping that must happen before the next start
+		    if(standby != null) {
+		    	LaunchPlan next;
+		    	if(x == LauncherUtilities.getRestartSignal() && !isHousekeepingPending(plan)
+		    			&& (next = getPlan()).getCommand() != null && standby.canRelease(next.getConfig(), next.getCommand(heapRequest))) {
+		    		// The steps before the start are skipped in the next cycle, the journal is replayed between both processes
+		    		phase = System.nanoTime();
+		    		replayJournal();
+		    		metrics.record(CycleMetrics.JOURNAL_REPLAY, phase);
+
+		    		// Cleared for the released process, which only opens it once released
+		    		if(channel != null)
+		    			channel.reset(null);
+		    		proc = standby.release();
+		    		procCommand = standby.getCommand();
+		    		logger.info("standby.released");
+		    	}
+		    	else
+		    		standby.discard();
+		    }
+
+		    phase = System.nanoTime();
+		    housekeeping.start(HousekeepingScheduler.Phase.AFTER_CHILD_EXIT);
+		    housekeeping.shutdown();
+		    metrics.record(CycleMetrics.POST_EXIT, phase);
+
+		    signal = getRestartSignal();
+
+		    if(CycleMetrics.isEnabled(config))
+		    	metrics.finishCycle(x);
+
+		    // A worker restarts merlin with the same job, otherwise it moves to the next one
+		    if(worker != null && worker.getJobQueue() != null && x != signal) {
+		    	logger.info("worker.job.end", "worker", worker.getId(), "job", job, "exit_code", x);
+		    	// Claimed until now, a crash of the launcher leaves the job in the queue
+		    	worker.getJobQueue().complete(worker.getId(), job);
+		    	if(jobsExitCode == 0)
+		    		jobsExitCode = x;
+		    	job = null;
+		    	x = signal;
+		    }
+
+	    }while(x==signal);
+
+	    // The restart signal changed while the standby was being released
+	    if(proc != null)
+	    	proc.destroy();
+
+	    closeWatcher();
+	    return x;
+	}
+
+	/**
+	 * Run all the housekeeping steps at once, while no merlin process is running
+	 */
+	public void runHousekeeping() throws IOException, InterruptedException{
+		CycleMetrics metrics = new CycleMetrics();
+		HousekeepingScheduler housekeeping = new HousekeepingScheduler(metrics);
+		addHousekeeping(housekeeping, buildPlan(false), true);
+		housekeeping.run(HousekeepingScheduler.Phase.BEFORE_CHILD_START);
+		housekeeping.run(HousekeepingScheduler.Phase.ANYTIME);
+		housekeeping.start(HousekeepingScheduler.Phase.AFTER_CHILD_EXIT);
+		housekeeping.shutdown();
+	}
+
+	/**
+	 * Declare the housekeeping steps of a cycle
+	 * @param housekeeping - scheduler of the steps
+	 * @param plan - plan of the merlin process of this cycle
+	 * @param deletions - true if the files to delete are deleted in this cycle (a new process is started)
+	 */
+	private void addHousekeeping(HousekeepingScheduler housekeeping, LaunchPlan plan, boolean deletions){
+		LaunchConfiguration config = plan.getConfig();
+		if(deletions) {
+			// Files that can not affect the merlin process are deleted while it runs
+			DeletionExecutor executor = new DeletionExecutor();
+			List<String> deferredDeletions = Collections.synchronizedList(new ArrayList<String>());
+
+			// Delete files from another OS
+			housekeeping.add(CycleMetrics.DELETE_EXTRA_FILES, HousekeepingScheduler.Phase.BEFORE_CHILD_START,
+					() -> deleteBeforeStart(executor, plan.getExtraFiles(), plan, deferredDeletions));
+
+			// Delete files from property list or file
+			housekeeping.add(CycleMetrics.DELETE_PROPERTY_FILES, HousekeepingScheduler.Phase.BEFORE_CHILD_START,
+					() -> deleteBeforeStart(executor, plan.getFilesToDelete(), plan, deferredDeletions));
+
+			// Files merlin asked to delete when it was no longer running
+			housekeeping.add(CycleMetrics.JOURNAL_REPLAY, HousekeepingScheduler.Phase.BEFORE_CHILD_START, LaunchSession::replayJournal);
+
+			housekeeping.add(CycleMetrics.DEFERRED_DELETIONS, HousekeepingScheduler.Phase.ANYTIME, () -> {
+				executor.submitAll(deferredDeletions);
+				executor.shutdown();
+			});
+		}
+
+		// The newest log of each folder, the one merlin writes, is always kept
+		housekeeping.add(CycleMetrics.LOG_RETENTION, HousekeepingScheduler.Phase.ANYTIME, () -> cleanLogs(config));
+
+		// Skipped when nothing is staged or nothing changed since the last install
+		housekeeping.add(CycleMetrics.PLUGIN_INSTALL, HousekeepingScheduler.Phase.AFTER_CHILD_EXIT,
+				() -> new PluginInstallEngine(plan.getPluginsBin(), plan.getPluginsInstall()).installPlugins());
+
+		// Installed plugins may bring libs, the list of dependencies is only checked after them
+		housekeeping.add(CycleMetrics.LIB_PRUNING, HousekeepingScheduler.Phase.AFTER_CHILD_EXIT, () -> {
+			File dependenciesFile = new File(DEPENDENCIESFILE);
+			if(dependenciesFile.exists())
+				LauncherUtilities.deleteAllFilesExceptInFileList(dependenciesFile, new File("lib"));
+		}, CycleMetrics.PLUGIN_INSTALL);
+	}
+
+	/** Delete the files merlin asked to delete, while no merlin process is running */
+	private static void replayJournal() throws IOException, InterruptedException{
+		int replayed = DeletionJournal.replay();
+		if(replayed > 0)
+			logger.info("journal.replayed", "paths", replayed);
+	}
+
+	private static void cleanLogs(LaunchConfiguration config){
+		Integer historyLimit = null;
+
+		try {
+			logger.debug("logs.retention", "days", config.getProperty("logDaysHistoryLimit"));
+			historyLimit = Integer.valueOf(config.getProperty("logDaysHistoryLimit"));
+
+			String logsPath = LauncherUtilities.readLogsPathDirectory();
+
+			LauncherUtilities.cleanOldFilesFromDirectory(logsPath, historyLimit, getLogSizeLimit(config));
+		}
+		catch (Exception e) {
+			LauncherUtilities.cleanOldFilesFromDirectory(MainCycle.LOGS_PATH, MainCycle.LOG_HISTORY_LIMIT);
+			logger.debug("logs.retention.default", "folder", MainCycle.LOGS_PATH, "days", MainCycle.LOG_HISTORY_LIMIT, "reason", e.toString());
+		}
+	}
+
+	/** @return the maximum size of the logs in bytes, 0 if not defined */
+	private static long getLogSizeLimit(LaunchConfiguration config){
+		String limit = config.getProperty(LogRetention.LOGSIZEHISTORYLIMIT);
+		try {
+			if(limit != null)
+				return Long.parseLong(limit.trim()) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", LogRetention.LOGSIZEHISTORYLIMIT, "value", limit);
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the plan of the next start, computing it again if its inputs changed
+	 * @return the current plan
+	 */
+	private synchronized LaunchPlan getPlan() throws IOException{
+		if(plan == null || !plan.isCurrent())
+			plan = buildPlan(true);
+		return plan;
+	}
+
+	/**
+	 * Compute the plan of the next start from the current configuration
+	 * @param process - false if only the configuration and the deletions are needed
+	 * @return the new plan
+	 */
+	private synchronized LaunchPlan buildPlan(boolean process) throws IOException{
+		// Only parsed again if the configuration files changed since the last cycle
+		LaunchConfiguration config = LaunchConfiguration.get(mainConfFile);
+
+		LaunchPlan.Locations locations = getExtraConfigInfo(config);
+		String pluginsBin = locations.pluginsBin;
+
+		// Recorded first, a change while the plan is computed makes it stale
+		Map<String, long[]> inputs = LaunchPlan.snapshot(getPlanInputs(config, locations));
+
+		boolean inProcess = worker == null && InProcessChild.isEnabled(config);
+		String javaPath = config.getProperty("JAVAPATH");
+		String classpath = javaPath;
+		List<String> classpathEntries = Collections.emptyList();
+		List<String> classpathArgs = Arrays.asList("-cp", javaPath);
+
+		// Explicit classpath in a stable order, the archive of class data sharing depends on it
+		if(process && (inProcess || ClasspathCache.isEnabled(config))) {
+			try {
+				ClasspathCache cache = getClasspath(config);
+				classpath = cache.getClasspath();
+				classpathEntries = cache.getEntries();
+				if(!inProcess)
+					classpathArgs = cache.getJavaArgs(JreCapabilities.of(config.getJRE()), javaPath);
+			} catch (IOException e) {
+				if(inProcess)
+					throw e;
+				logger.warn("classpath.failed", "fallback", "JAVAPATH", "error", e.getMessage());
+			}
+		}
+
+		List<String> prefix = null, suffix = null;
+		if(process && !inProcess) {
+			prefix = new ArrayList<String>();
+			if(worker != null)
+				prefix.addAll(worker.getCommandPrefix());
+			prefix.add(config.getJRE());
+			prefix.addAll(config.getJavaArgsOS());
+			if(worker != null)
+				prefix.addAll(worker.getJavaArgs(config));
+
+			suffix = new ArrayList<String>();
+			// Workers share the archive, only the standalone launcher runs the training
+			suffix.addAll(ClassDataSharing.getJavaArgs(config, classpath, pluginsBin, worker == null));
+			suffix.addAll(classpathArgs);
+			suffix.add(locations.aibenchLauncher);
+			suffix.add(pluginsBin);
+		}
+
+		return new LaunchPlan(config, inputs, locations, prefix, suffix, worker == null ? 1 : worker.getInstances(),
+				classpathEntries, defineFilesToDelete(config), getFilesToDelete(config));
+	}
+
+	/** Files and folders the plan depends on, besides the configuration files */
+	private static List<File> getPlanInputs(LaunchConfiguration config, LaunchPlan.Locations locations){
+		List<File> inputs = new ArrayList<File>();
+		inputs.add(new File(DEPENDENCIESFILE));
+		inputs.add(new File(LOGBACKFILE));
+		inputs.add(new File("lib"));
+		inputs.add(new File(locations.pluginsInstall));
+		inputs.add(new File(locations.pluginsBin));
+		inputs.add(ClassDataSharing.getArchiveFile());
+
+		String javaPath = config.getProperty("JAVAPATH");
+		if(javaPath != null)
+			for (String entry : javaPath.split(File.pathSeparator)) {
+				File folder = ClasspathCache.getWildcardFolder(entry);
+				if(folder != null && !inputs.contains(folder))
+					inputs.add(folder);
+			}
+
+		// Lists of files to delete, merlin may write them while it runs
+		String lists = config.getProperty(DELETEFILESLIST);
+		if(lists != null && !lists.isEmpty())
+			for (String list : lists.split(";"))
+				inputs.add(new File(list));
+		return inputs;
+	}
+
+	/** Watch the inputs of a plan, to compute the next one as soon as they change */
+	private void watch(LaunchPlan plan){
+		if(!ConfigWatcher.isEnabled(plan.getConfig())) {
+			closeWatcher();
+			return;
+		}
+
+		List<File> inputs = plan.getInputs();
+		for (String source : plan.getConfig().getSources())
+			inputs.add(new File(source));
+		if(watcher != null && watcher.watches(inputs))
+			return;
+
+		closeWatcher();
+		try {
+			watcher = ConfigWatcher.start(inputs, new Runnable() {
+				@Override
+				public void run() {
+					refreshPlan();
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("watcher.start.failed", "error", e.getMessage());
+		}
+	}
+
+	private synchronized void refreshPlan(){
+		if(plan != null && plan.isCurrent())
+			return;
+		try {
+			long start = System.nanoTime();
+			plan = buildPlan(true);
+			logger.info("plan.rebuilt", "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException e) {
+			logger.warn("plan.rebuild.failed", "error", e.getMessage());
+		}
+	}
+
+	private void closeWatcher(){
+		if(watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	private static ClasspathCache getClasspath(LaunchConfiguration config) throws IOException{
+		ClasspathCache cache = ClasspathCache.get(config.getProperty("JAVAPATH"));
+
+		// Uncompressed copies of the jars, only repacked when a jar changes
+		if(JarRepacker.isEnabled(config))
+			cache = cache.repack();
+		return cache;
+	}
+
+	private static List<String> getFilesToDelete(LaunchConfiguration config){
+		List<String> filesToDelete = new ArrayList<String>();
+		List<String> delFiles = getListFromDictionaryProperty(config, DELETEFILES);
+		List<String> delFilesList = getListFromDictionaryProperty(config, DELETEFILESLIST);
+		if(delFiles != null)
+			filesToDelete.addAll(delFiles);
+		if(delFilesList != null)
+			filesToDelete.addAll(delFilesList);
+		return filesToDelete;
+	}
+
+	/**
+	 * Check if any housekeeping has to be done before the next merlin process starts:
+	 * plugins waiting to be installed, libs to remove, or files to delete that the merlin process may use.
+	 */
+	private boolean isHousekeepingPending(LaunchPlan plan) throws IOException{
+		// The other paths of the journal are deleted before the standby is released
+		for (String file : DeletionJournal.getPending())
+			if(DeletionExecutor.isUsedByProcess(file, plan.getConfig().getProperty("JAVAPATH"), plan.getPluginsBin()))
+				return true;
+
+		String[] staged = new File(plan.getPluginsInstall()).list();
+		if(staged != null && staged.length > 0)
+			return true;
+
+		File dependenciesFile = new File(DEPENDENCIESFILE);
+		if(dependenciesFile.exists() && !LauncherUtilities.getFilesNotInFileList(dependenciesFile, new File("lib")).isEmpty())
+			return true;
+
+		List<String> files = new ArrayList<String>(plan.getExtraFiles());
+		files.addAll(plan.getFilesToDelete());
+		for (String file : files)
+			if(new File(file).exists())
+				return true;
+
+		return false;
+	}
+
+	private static List<String> getListFromDictionaryProperty(LaunchConfiguration config, String property){
+		List<String> list = new ArrayList<String>();
+		if(config.getProperty(property) == null || config.getProperty(property).equals(""))
+			return null;
+
+		// Blank entries (a;;b, a trailing ;) would name the working directory
+		List<String> paths = new ArrayList<String>();
+		for (String path : config.getProperty(property).split(";"))
+			if(!path.trim().isEmpty())
+				paths.add(path.trim());
+		list.addAll(paths);
+
+		if(property.equals(DELETEFILESLIST)){
+			for (String filePath : paths)
+				list.addAll(LauncherUtilities.getListFromFile(filePath));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Delete the files used by the merlin process (classpath or plugins) and keep the others to be deleted after it starts
+	 * @param deletions - executor of the deletions
+	 * @param files - files and folders to delete
+	 * @param plan - plan of the merlin process
+	 * @param deferred - list where the files that can wait are added
+	 */
+	private static void deleteBeforeStart(DeletionExecutor deletions, List<String> files, LaunchPlan plan, List<String> deferred) throws InterruptedException
+	{
+		for (String file : files) {
+			if(DeletionExecutor.isUsedByProcess(file, plan.getConfig().getProperty("JAVAPATH"), plan.getPluginsBin()))
+				deletions.submit(file);
+			else
+				deferred.add(file);
+		}
+		deletions.await();
+	}
+}
@@ -0,0 +1,255 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.NOPLoggerFactory;
+
+/**
+ * Asynchronous diagnostics of the launcher.
+ * <p>Events are a name and key-value pairs (<code>heap.sizing available_mb=3001 xmx_mb=750</code>). The calling
+ * thread only checks the level of the category and queues the event, the formatting and the writing are done by a
+ * daemon thread, through slf4j or, when no slf4j binding is present, to the console. When the bounded queue is full
+ * events are dropped and counted instead of blocking the launcher; the count is logged once the queue drains.
+ * <p>The level of every category is <code>launcherLogLevel</code> in main.conf (INFO by default), and a category,
+ * the simple name of the class, can have its own with <code>launcherLogLevel.&lt;category&gt;</code>.
+ */
+final class LauncherLog {
+
+	public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+	// Properties of main.conf
+	public static final String LAUNCHERLOGLEVEL = "launcherLogLevel";
+	public static final String LAUNCHERLOGQUEUE = "launcherLogQueue";
+
+	private static final int DEFAULT_QUEUE = 4096;
+	private static final long FLUSH_MILLIS = 2000;
+
+	// Standard output of the launcher, merlin may redirect System.out when it runs in the launcher JVM
+	private static final PrintStream console = System.out;
+
+	// Loggers of the categories <Category, Logger>
+	private static final Map<String, LauncherLog> logs = new ConcurrentHashMap<String, LauncherLog>();
+
+	private static volatile Level defaultLevel = Level.INFO;
+	private static volatile Map<String, Level> categoryLevels = new HashMap<String, Level>();
+	private static volatile BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(DEFAULT_QUEUE);
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile Thread writer;
+
+	// Only used by the writer, under its lock
+	private static final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+	private static Boolean bound;
+
+	private final String category;
+	private final Logger logger;
+	private volatile Level level;
+
+	private LauncherLog(Class<?> type){
+		this.category = type.getSimpleName();
+		this.logger = LoggerFactory.getLogger(type);
+	}
+
+	/**
+	 * Get the log of a category
+	 * @param type - class of the category
+	 * @return the log
+	 */
+	public static LauncherLog get(Class<?> type){
+		LauncherLog log = logs.get(type.getSimpleName());
+		if(log == null) {
+			log = new LauncherLog(type);
+			log.level = categoryLevels.get(log.category);
+			LauncherLog previous = logs.putIfAbsent(log.category, log);
+			if(previous != null)
+				return previous;
+		}
+		return log;
+	}
+
+	/**
+	 * Apply the levels and the queue size of the configuration
+	 * @param config - launch configuration
+	 */
+	public static void configure(LaunchConfiguration config){
+		defaultLevel = parse(config.getProperty(LAUNCHERLOGLEVEL), Level.INFO);
+
+		Map<String, Level> levels = new HashMap<String, Level>();
+		for (String property : config.getPropertiesDictionary().keySet())
+			if(property.startsWith(LAUNCHERLOGLEVEL + "."))
+				levels.put(property.substring(LAUNCHERLOGLEVEL.length() + 1), parse(config.getProperty(property), null));
+		categoryLevels = levels;
+		for (LauncherLog log : logs.values())
+			log.level = levels.get(log.category);
+
+		String size = config.getProperty(LAUNCHERLOGQUEUE);
+		try {
+			int capacity = size == null ? DEFAULT_QUEUE : Integer.parseInt(size.trim());
+			if(capacity > 0 && capacity != queue.remainingCapacity() + queue.size()) {
+				BlockingQueue<Event> previous = queue;
+				queue = new ArrayBlockingQueue<Event>(capacity);
+				previous.drainTo(queue);
+			}
+		}
+		catch (NumberFormatException e) {
+			get(LauncherLog.class).warn("property.invalid", "name", LAUNCHERLOGQUEUE, "value", size);
+		}
+	}
+
+	private static Level parse(String value, Level defaultLevel){
+		if(value != null)
+			try {
+				return Level.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				console.println("Warning - Invalid log level: " + value);
+			}
+		return defaultLevel;
+	}
+
+	public boolean isEnabled(Level level){
+		Level threshold = this.level;
+		return level.compareTo(threshold == null ? defaultLevel : threshold) >= 0;
+	}
+
+	public void debug(String event, Object... keyValues){
+		log(Level.DEBUG, event, null, keyValues);
+	}
+
+	public void info(String event, Object... keyValues){
+		log(Level.INFO, event, null, keyValues);
+	}
+
+	public void warn(String event, Object... keyValues){
+		log(Level.WARN, event, null, keyValues);
+	}
+
+	public void warn(String event, Throwable error, Object... keyValues){
+		log(Level.WARN, event, error, keyValues);
+	}
+
+	public void error(String event, Throwable error, Object... keyValues){
+		log(Level.ERROR, event, error, keyValues);
+	}
+
+	private void log(Level level, String event, Throwable error, Object[] keyValues){
+		if(!isEnabled(level))
+			return;
+		if(!queue.offer(new Event(System.currentTimeMillis(), this, level, event, error, keyValues)))
+			dropped.incrementAndGet();
+		else if(writer == null)
+			startWriter();
+	}
+
+	/** Event waiting to be written, formatted only by the writer */
+	private static final class Event {
+		private final long timestamp;
+		private final LauncherLog log;
+		private final Level level;
+		private final String name;
+		private final Throwable error;
+		private final Object[] keyValues;
+
+		private Event(long timestamp, LauncherLog log, Level level, String name, Throwable error, Object[] keyValues){
+			this.timestamp = timestamp;
+			this.log = log;
+			this.level = level;
+			this.name = name;
+			this.error = error;
+			this.keyValues = keyValues;
+		}
+	}
+
+	private static synchronized void startWriter(){
+		if(writer != null)
+			return;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						Event event = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+						if(event != null)
+							write(event);
+						if(queue.isEmpty())
+							reportDropped();
+					}
+				}
+				catch (InterruptedException e) {
+					// The events left are written by the shutdown hook
+				}
+			}
+		}, "merlin-launcher-log");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Events still queued when the launcher exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "merlin-launcher-log-flush"));
+	}
+
+	/** Write the queued events in the calling thread */
+	public static void flush(){
+		List<Event> events = new ArrayList<Event>();
+		queue.drainTo(events);
+		for (Event event : events)
+			write(event);
+		reportDropped();
+	}
+
+	private static void reportDropped(){
+		long count = dropped.getAndSet(0);
+		if(count > 0)
+			write(new Event(System.currentTimeMillis(), get(LauncherLog.class), Level.WARN, "log.dropped", null, new Object[]{"count", count}));
+	}
+
+	private static synchronized void write(Event event){
+		StringBuilder line = new StringBuilder(128).append(event.name);
+		Object[] keyValues = event.keyValues;
+		for (int i = 0; i + 1 < keyValues.length; i += 2)
+			line.append(' ').append(keyValues[i]).append('=').append(keyValues[i + 1]);
+
+		// Without a binding slf4j discards everything
+		if(bound == null)
+			bound = !(LoggerFactory.getILoggerFactory() instanceof NOPLoggerFactory);
+
+		if(bound) {
+			Logger logger = event.log.logger;
+			String message = line.toString();
+			switch (event.level) {
+			case TRACE: logger.trace(message, event.error); break;
+			case DEBUG: logger.debug(message, event.error); break;
+			case INFO: logger.info(message, event.error); break;
+			case WARN: logger.warn(message, event.error); break;
+			default: logger.error(message, event.error); break;
+			}
+			return;
+		}
+
+		line.insert(0, time.format(new Date(event.timestamp)) + " " + event.level + " " + event.log.category + " - ");
+		if(event.error != null) {
+			StringWriter trace = new StringWriter();
+			event.error.printStackTrace(new PrintWriter(trace));
+			line.append(System.lineSeparator()).append(trace.toString().trim());
+		}
+		console.println(line);
+	}
+}
@@ -4,22 +4,31 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.FileChannel;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class LauncherUtilities {
+
+	private static final LauncherLog logger = LauncherLog.get(LauncherUtilities.class);
+	
+	// System property that moves the launcher files elsewhere, read once
+	public static final String CACHE_PROPERTY = "merlin.launcher.cache";
+
+	// Directory for files generated by the launcher (archives, manifests, caches)
+	public static final String CACHE_PATH = System.getProperty(CACHE_PROPERTY, ".launcher");
 	
 	public static Integer restartSignal;
 	
@@ -35,91 +44,117 @@ public class LauncherUtilities {
 	public static void restart(){
 		if(restartSignal == null)
 			restartSignal = MainCycle.getRestartSignal();
+		
+		// Running inside the launcher JVM, the hook ends this merlin instead of the JVM
+		Object exitHook = System.getProperties().get(InProcessChild.EXIT_HOOK);
+		if(exitHook instanceof IntConsumer)
+			((IntConsumer) exitHook).accept(restartSignal);
+		
 		System.exit(restartSignal);
 	}
 	
-	public static void deleteFiles(List<String> filesToDelete){
-		if(filesToDelete!=null && filesToDelete.size()>0)		
-			for (String file: filesToDelete) {
-				try {
-					delete(file);
-				} catch (IOException e) {
-					System.out.println("Could not delete file: " + file);
-					e.printStackTrace();
-				}
-			}
+	/**
+	 * Get a directory inside the launcher cache, creating it if needed
+	 * @param name - name of the directory
+	 * @return the directory
+	 */
+	public static File getCacheDirectory(String name){
+		File directory = new File(CACHE_PATH, name);
+		if(!directory.isDirectory())
+			directory.mkdirs();
+		return directory;
 	}
 	
-	public static void deleteFilesOnExit(List<String> filesToDelete) throws IOException{
-		if(filesToDelete!=null && filesToDelete.size()>0)		
-			for (String file: filesToDelete) {
-				cleanAndDeleteOnExit(file);
-			}
+	/**
+	 * Convert bytes (usually a digest) to an hexadecimal String
+	 * @param bytes - bytes to convert
+	 * @return the hexadecimal representation
+	 */
+	public static String toHex(byte[] bytes){
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return builder.toString();
 	}
 	
-	
-	private static void deleteOnExit(String fileName) {
-		File file = new File(fileName);
-		
-		if(file.exists()){
-	    	if(file.isDirectory()){
-	 
-	    		System.out.println("Deleted DIRECTORY: " +file);
-	    		//directory is empty, then delete it
-	    		if(file.list().length==0)
-	    		   file.deleteOnExit();
-	    		
-	    	}else{
-	    		//if file, then delete it
-	    		file.deleteOnExit();
-	    		System.out.println("Deleted on exit FILE: " + file.getAbsolutePath());
-	    	}
+	/**
+	 * Compute the SHA-1 of a file
+	 * @param file - file to read
+	 * @return the hexadecimal digest
+	 * @throws IOException
+	 */
+	public static String sha1(File file) throws IOException{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
 		}
 		
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				digest.update(buffer, 0, read);
+		}
+		return toHex(digest.digest());
 	}
 	
-	public static void cleanAndDeleteOnExit(String fileName) throws IOException{
-		
-		FileChannel sourceChannel = null, outputChannel = null;
-		File out = null;
+	/**
+	 * Delete files and folders, with everything in them, in parallel
+	 * @param filesToDelete - paths to delete
+	 */
+	public static void deleteFiles(List<String> filesToDelete){
+		if(filesToDelete!=null && filesToDelete.size()>0) {
+			DeletionExecutor deletions = new DeletionExecutor();
+			deletions.submitAll(filesToDelete);
+			awaitDeletions(deletions);
+		}
+	}
+	
+	private static void awaitDeletions(DeletionExecutor deletions){
 		try {
-			File tempFile = File.createTempFile("toremove", "");
-			out = new File(fileName);
-			sourceChannel = new FileInputStream(tempFile).getChannel();
-			outputChannel = new FileOutputStream(out).getChannel();
-			
-			sourceChannel.transferTo(0, sourceChannel.size(), outputChannel);
-		} catch (IOException e) {
-			throw e;
-		} finally {
-			try {
-				sourceChannel.close();
-			} catch (IOException e) {}
-			try {
-				outputChannel.close();
-			} catch (IOException e) {}
+			deletions.shutdown();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		out.deleteOnExit();
+	}
+	
+	/**
+	 * Empty files now and delete them, with the other paths, before merlin starts again
+	 * @param filesToDelete - files and folders to delete
+	 */
+	public static void deleteFilesOnExit(List<String> filesToDelete) throws IOException{
+		if(filesToDelete!=null && filesToDelete.size()>0) {
+			for (String file: filesToDelete)
+				truncate(file);
+			DeletionJournal.append(filesToDelete);
+		}
+	}
+	
+	/**
+	 * Empty a file now and delete it before merlin starts again
+	 * @param fileName - file to delete
+	 */
+	public static void cleanAndDeleteOnExit(String fileName) throws IOException{
+		truncate(fileName);
+		DeletionJournal.append(Collections.singletonList(fileName));
+	}
+	
+	/** Release the space of a file that may still be open */
+	private static void truncate(String fileName) throws IOException{
+		File file = new File(fileName);
+		if(file.isFile())
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(0);
+			}
 	}
 
-	// Method for folder/file deletion
+	// Method for folder/file deletion, folders are deleted with everything in them
 	public static void delete(String fileName) throws IOException{
-		File file = new File(fileName);
-		
-		if(file.exists()){
-	    	if(file.isDirectory()){
-	 
-	    		System.out.println("Deleted DIRECTORY: " +file);
-	    		//directory is empty, then delete it
-	    		if(file.list().length==0)
-	    		   file.delete();
-	    		
-	    	}else{
-	    		//if file, then delete it
-	    		file.delete();
-	    		System.out.println("Deleted FILE: " + file.getAbsolutePath());
-	    	}
-		}
+		DeletionExecutor deletions = new DeletionExecutor();
+		deletions.submit(fileName);
+		awaitDeletions(deletions);
     }
 	
 	public static List<String> getListFromFile(String filePath){
@@ -133,11 +168,13 @@ public class LauncherUtilities {
 			BufferedReader bufferedReader = new BufferedReader(fileReader);
 			String line;
 			while ((line = bufferedReader.readLine()) != null) {
-				list.add(line);
+				// A blank line would name the working directory
+				if(!line.trim().isEmpty())
+					list.add(line.trim());
 			}
 			fileReader.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			logger.warn("file.list.read.failed", e, "file", filePath);
 		}
 		
 		return list;
@@ -147,61 +184,36 @@ public class LauncherUtilities {
 		if(!folder.isDirectory())
 			return;
 		
-		List<String> filesToKeepAux = getListFromFile(fileWithList.getAbsolutePath());
-		filesToKeepAux.add("launcher.jar");
-		List<String> filesToKeep = new LinkedList<>();
-		// Append folder to filesToKeep
-		for (String keep : filesToKeepAux)
-			filesToKeep.add(folder + File.separator + keep);
-			
-		List<String> allFilesInFolder = new ArrayList<String>();
-		File[] fileList = folder.listFiles();
-		for (File file : fileList)
-			allFilesInFolder.add(folder.getName() + File.separator + file.getName());
-		
-		List<String> filesToDelete = new ArrayList<String>(allFilesInFolder);
-		filesToDelete.removeAll(filesToKeep);
-				
-		try {
-			deleteFilesOnExit(filesToDelete);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		new LibraryReconciler(fileWithList, folder).reconcile();
+	}
+	
+	/**
+	 * Get the files of a folder that are not in the list
+	 * @param fileWithList - file with the names of the files to keep, one per line
+	 * @param folder - folder to check
+	 * @return the files that would be removed by {@link #deleteAllFilesExceptInFileList(File, File)}
+	 */
+	public static List<String> getFilesNotInFileList(File fileWithList, File folder){
+		return new LibraryReconciler(fileWithList, folder).getFilesToRemove();
 	}
 	
 	public static void cleanOldFilesFromDirectory (String directory, Integer daysThreshold) {
+		cleanOldFilesFromDirectory(directory, daysThreshold, 0);
+	}
+	
+	/**
+	 * Delete the log files of a directory and its subdirectories that are older than the threshold, then the oldest ones until the
+	 * total size is under the limit (see {@link LogRetention})
+	 * @param directory - directory with the files
+	 * @param daysThreshold - maximum age of the files in days
+	 * @param sizeLimit - maximum total size in bytes, 0 or less for no limit
+	 */
+	public static void cleanOldFilesFromDirectory (String directory, Integer daysThreshold, long sizeLimit) {
 		
 		try {
-	
-			File folder = new File(directory);
-			File[] listOfFiles = folder.listFiles();
-			SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-			
-			if(listOfFiles == null) { // wrong input, if the folder does not exist there is nothing to clean
-				throw new Exception("Input directory does not exist");
-			}
-			
-			for (File file : listOfFiles) {
-			    if (file.isFile()) {
-			    	
-			    	Date lastModified = sdf.parse(sdf.format(file.lastModified())); // last modified date of file
-			    	Calendar c = Calendar.getInstance();
-			    	Date currentDate = new Date(System.currentTimeMillis()); // current time
-			    	c.setTime(currentDate);
-			    	c.add(Calendar.DAY_OF_YEAR, -daysThreshold); // go back "input" days in time
-			    	Date thresholdDate = c.getTime();
-			    	Long difference = lastModified.getTime() - thresholdDate.getTime(); 
-			    	long parsedDifference = TimeUnit.DAYS.convert(difference,  TimeUnit.MILLISECONDS); // difference in days between the last modified date of the file and today's date
-			    	
-			    	if(parsedDifference < 0) { // file is older than the input threshold, thus it must be deleted
-			    		file.delete();			    		
-			    	}
-			    }
-			}
-			
-			
+			new LogRetention(directory, daysThreshold, sizeLimit).clean();
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.warn("logs.clean.failed", "folder", directory, "error", e.getMessage());
 		}
 	}
 
@@ -220,7 +232,7 @@ public class LauncherUtilities {
 				file.close();
 
 			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+				logger.warn("logs.path.read.failed", "error", e.getMessage());
 			}
 			int i = 0;
 
@@ -234,7 +246,8 @@ public class LauncherUtilities {
 				if(m.find()) {
 					pattern = m.group(1);	
 					
-					int index = pattern.lastIndexOf("ç");
+					// Folder of the log file
+					int index = Math.max(pattern.lastIndexOf('/'), pattern.lastIndexOf('\\'));
 					
 					if(index > 0)
 						pattern = pattern.substring(0, index);
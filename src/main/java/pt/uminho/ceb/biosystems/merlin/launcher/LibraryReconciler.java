@@ -0,0 +1,179 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reconciles a folder (usually <code>lib/</code>) with the list of files it should contain.
+ * <p>Each line of the list has the name of a file to keep, optionally followed by its size and SHA-1,
+ * separated by tabs. Everything else in the folder is removed in a single batch.
+ */
+final class LibraryReconciler {
+
+	private static final LauncherLog logger = LauncherLog.get(LibraryReconciler.class);
+
+	// Always kept, the launcher itself
+	public static final String LAUNCHER_JAR = "launcher.jar";
+
+	private final File fileWithList;
+	private final File folder;
+
+	/**
+	 * @param fileWithList - file with the files to keep, one per line
+	 * @param folder - folder to reconcile
+	 */
+	public LibraryReconciler(File fileWithList, File folder){
+		this.fileWithList = fileWithList;
+		this.folder = folder;
+	}
+
+	/** Line of the list of files to keep */
+	private static final class KeepEntry {
+		private final String name;
+		private final long size;
+		private final String sha1;
+
+		private KeepEntry(String name, long size, String sha1) {
+			this.name = name;
+			this.size = size;
+			this.sha1 = sha1;
+		}
+	}
+
+	/**
+	 * Get the files of the folder that are not in the list, in linear time
+	 * @return paths of the files to remove
+	 */
+	public List<String> getFilesToRemove(){
+		List<String> filesToRemove = new ArrayList<String>();
+
+		String[] names = folder.list();
+		if(names == null)
+			return filesToRemove;
+
+		Map<String, KeepEntry> keep = readKeepList();
+		for (String name : names)
+			if(!keep.containsKey(name))
+				filesToRemove.add(new File(folder, name).getPath());
+
+		return filesToRemove;
+	}
+
+	/**
+	 * Remove the files that are not in the list and verify the size and checksum of the kept files that declare them
+	 * @return the number of files removed
+	 */
+	public int reconcile(){
+		String[] names = folder.list();
+		if(names == null)
+			return 0;
+
+		Map<String, KeepEntry> keep = readKeepList();
+		List<String> filesToRemove = new ArrayList<String>();
+		List<KeepEntry> toVerify = new ArrayList<KeepEntry>();
+
+		for (String name : names) {
+			KeepEntry entry = keep.get(name);
+			if(entry == null)
+				filesToRemove.add(new File(folder, name).getPath());
+			else if(entry.size >= 0 || entry.sha1 != null)
+				toVerify.add(entry);
+		}
+
+		verify(toVerify);
+
+		try {
+			LauncherUtilities.deleteFilesOnExit(filesToRemove);
+		} catch (IOException e) {
+			logger.warn("libs.delete.failed", e);
+		}
+		return filesToRemove.size();
+	}
+
+	private Map<String, KeepEntry> readKeepList(){
+		Map<String, KeepEntry> keep = new HashMap<String, KeepEntry>();
+		keep.put(LAUNCHER_JAR, new KeepEntry(LAUNCHER_JAR, -1, null));
+
+		if(!fileWithList.exists())
+			return keep;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileWithList))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if(line.trim().isEmpty())
+					continue;
+
+				String[] fields = line.split("\t");
+				long size = -1;
+				String sha1 = null;
+				try {
+					if(fields.length > 1 && !fields[1].isEmpty())
+						size = Long.parseLong(fields[1].trim());
+				} catch (NumberFormatException e) {
+					logger.warn("libs.list.size.invalid", "file", fileWithList.getPath(), "line", line);
+				}
+				if(fields.length > 2 && !fields[2].trim().isEmpty())
+					sha1 = fields[2].trim().toLowerCase();
+
+				keep.put(fields[0], new KeepEntry(fields[0], size, sha1));
+			}
+		}
+		catch (IOException e) {
+			logger.warn("libs.list.read.failed", e, "file", fileWithList.getPath());
+		}
+		return keep;
+	}
+
+	/** Check the kept files in parallel, reporting the ones that do not match the list */
+	private void verify(List<KeepEntry> entries){
+		if(entries.isEmpty())
+			return;
+
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final KeepEntry entry : entries) {
+				results.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						File file = new File(folder, entry.name);
+						if(entry.size >= 0 && file.length() != entry.size)
+							return "size " + file.length() + ", expected " + entry.size;
+						if(entry.sha1 != null && !entry.sha1.equals(LauncherUtilities.sha1(file)))
+							return "checksum does not match";
+						return null;
+					}
+				}));
+			}
+
+			for (int i = 0; i < entries.size(); i++) {
+				try {
+					String mismatch = results.get(i).get();
+					if(mismatch != null)
+						logger.warn("libs.mismatch", "library", entries.get(i).name, "list", fileWithList.getName(), "mismatch", mismatch);
+				}
+				catch (ExecutionException e) {
+					logger.warn("libs.verify.failed", "library", entries.get(i).name, "error", e.getCause().getMessage());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+}
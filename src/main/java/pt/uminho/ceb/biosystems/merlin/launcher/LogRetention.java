@@ -0,0 +1,177 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Retention of the log files of a folder.
+ * <p>Only log files are considered (<code>*.log</code>, rolled <code>*.log.N</code> and <code>*.gz</code>), in the
+ * folder and its subfolders up to a few levels deep. From the oldest, files older than the days threshold are
+ * removed, and files are removed until the total size is under the size limit. The newest log of each folder, the one
+ * merlin writes or will append to, is always kept, and the working directory or one of its parents is never cleaned.
+ */
+final class LogRetention {
+
+	private static final LauncherLog logger = LauncherLog.get(LogRetention.class);
+
+	// Property of main.conf, total size of the logs in MB
+	public static final String LOGSIZEHISTORYLIMIT = "logSizeHistoryLimit";
+
+	private static final int BATCH_SIZE = 256;
+	private static final int MAX_DEPTH = 4;
+
+	private static final Pattern LOG_NAME = Pattern.compile(".+\\.(log(\\.\\d+)?|gz)");
+
+	private final Path directory;
+	private final int daysThreshold;
+	private final long sizeLimit;
+
+	/**
+	 * @param directory - folder with the logs
+	 * @param daysThreshold - maximum age of the files in days
+	 * @param sizeLimit - maximum total size of the files in bytes, 0 or less for no limit
+	 */
+	public LogRetention(String directory, int daysThreshold, long sizeLimit){
+		this.directory = Paths.get(directory);
+		this.daysThreshold = daysThreshold;
+		this.sizeLimit = sizeLimit;
+	}
+
+	/** Log file of the folder, attributes are read once */
+	private static final class LogFile {
+		private final Path path;
+		private final long lastModified;
+		private final long size;
+
+		private LogFile(Path path, BasicFileAttributes attrs) {
+			this.path = path;
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+			this.size = attrs.size();
+		}
+	}
+
+	/**
+	 * Apply the retention policy
+	 * @return the number of files deleted
+	 * @throws IOException if the folder does not exist, can not be read or holds the working directory
+	 */
+	public int clean() throws IOException{
+
+		if(!Files.isDirectory(directory))
+			throw new IOException("Input directory does not exist: " + directory);
+
+		// A log path like ./merlin.log would otherwise clean the installation
+		Path folder = directory.toRealPath();
+		if(Paths.get("").toRealPath().startsWith(folder))
+			throw new IOException("Refusing to clean the working directory or one of its parents: " + folder);
+
+		// Subfolders such as logs/merlin are walked too, a few levels deep
+		final List<LogFile> files = new ArrayList<LogFile>();
+		Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), MAX_DEPTH, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(attrs.isRegularFile() && LOG_NAME.matcher(file.getFileName().toString()).matches())
+					files.add(new LogFile(file, attrs));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				logger.debug("logs.read.failed", "path", file, "error", e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		// Oldest first
+		Collections.sort(files, new Comparator<LogFile>() {
+			@Override
+			public int compare(LogFile f1, LogFile f2) {
+				return Long.compare(f1.lastModified, f2.lastModified);
+			}
+		});
+
+		// The newest log of each folder is left out
+		Map<Path, LogFile> newest = new HashMap<Path, LogFile>();
+		for (LogFile file : files)
+			newest.put(file.path.getParent(), file);
+
+		long threshold = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(daysThreshold);
+		long totalSize = 0;
+		for (LogFile file : files)
+			totalSize += file.size;
+
+		List<Path> toDelete = new ArrayList<Path>();
+		for (LogFile file : files) {
+			if(newest.get(file.path.getParent()) != file && (file.lastModified < threshold || (sizeLimit > 0 && totalSize > sizeLimit))) {
+				toDelete.add(file.path);
+				totalSize -= file.size;
+			}
+		}
+
+		return delete(toDelete);
+	}
+
+	/** Delete the files in parallel batches */
+	private static int delete(List<Path> toDelete){
+		if(toDelete.isEmpty())
+			return 0;
+
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int deleted = 0;
+		try {
+			List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < toDelete.size(); i += BATCH_SIZE) {
+				final List<Path> batch = toDelete.subList(i, Math.min(i + BATCH_SIZE, toDelete.size()));
+				batches.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						int count = 0;
+						for (Path path : batch) {
+							try {
+								if(Files.deleteIfExists(path))
+									count++;
+							} catch (IOException e) {
+								logger.debug("logs.delete.failed", "path", path, "error", e.getMessage());
+							}
+						}
+						return count;
+					}
+				}));
+			}
+
+			for (Future<Integer> batch : batches)
+				deleted += batch.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			logger.warn("logs.clean.failed", e.getCause(), "files", toDelete.size());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return deleted;
+	}
+}
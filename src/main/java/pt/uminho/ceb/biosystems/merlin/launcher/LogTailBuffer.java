@@ -0,0 +1,63 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring buffer, allocated outside the heap, with the last bytes written by the merlin process.
+ */
+final class LogTailBuffer {
+
+	private final ByteBuffer buffer;
+	private boolean wrapped;
+
+	/** @param capacity - number of bytes kept */
+	public LogTailBuffer(int capacity){
+		this.buffer = ByteBuffer.allocateDirect(Math.max(1, capacity));
+	}
+
+	public synchronized void write(byte[] bytes, int offset, int length){
+		int capacity = buffer.capacity();
+
+		// Only the end of a write larger than the buffer is kept
+		if(length >= capacity){
+			offset += length - capacity;
+			length = capacity;
+		}
+
+		while(length > 0){
+			int chunk = Math.min(length, buffer.remaining());
+			buffer.put(bytes, offset, chunk);
+			offset += chunk;
+			length -= chunk;
+			if(!buffer.hasRemaining()){
+				buffer.clear();
+				wrapped = true;
+			}
+		}
+	}
+
+	/**
+	 * Write the content of the buffer, oldest bytes first
+	 * @param file - destination file
+	 * @throws IOException
+	 */
+	public synchronized void dump(File file) throws IOException{
+		ByteBuffer view = buffer.duplicate();
+		int position = view.position();
+
+		try (FileChannel out = new FileOutputStream(file).getChannel()) {
+			if(wrapped){
+				view.limit(view.capacity()).position(position);
+				while(view.hasRemaining())
+					out.write(view);
+			}
+			view.limit(position).position(0);
+			while(view.hasRemaining())
+				out.write(view);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import es.uvigo.ei.aibench.repository.PluginInstaller;
+
+/**
+ * Runs the AIBench {@link PluginInstaller} only when there is something new to install.
+ * <p>A manifest with the size, modification time and SHA-1 of every file in the plugins folders is kept after each
+ * successful install; a failed install removes it, so the installer runs again on the next cycle.
+ * The installer is skipped when nothing is staged, or when the staged and installed plugins are the same as after the last install.
+ * <p>The installer works on the whole install folder in a single call, so its time is only reported as a whole; each
+ * staged plugin is reported with its size and the time spent hashing it.
+ */
+final class PluginInstallEngine {
+
+	private static final LauncherLog logger = LauncherLog.get(PluginInstallEngine.class);
+
+	private static final String DIRECTORY = "plugins";
+	private static final String MANIFEST = "plugins.manifest";
+
+	private final String pluginsBin;
+	private final String pluginsInstall;
+	private final File manifestFile;
+
+	// Staged plugin (first name under the install folder) <bytes, hashing nanoseconds>
+	private final Map<String, long[]> stagedPlugins = new TreeMap<String, long[]>();
+
+	/**
+	 * @param pluginsBin - folder with the installed plugins
+	 * @param pluginsInstall - folder with the plugins waiting to be installed
+	 */
+	public PluginInstallEngine(String pluginsBin, String pluginsInstall){
+		this.pluginsBin = pluginsBin;
+		this.pluginsInstall = pluginsInstall;
+		this.manifestFile = new File(LauncherUtilities.getCacheDirectory(DIRECTORY), MANIFEST);
+	}
+
+	/** Manifest line of a file */
+	private static final class Entry {
+		private final long size;
+		private final long lastModified;
+		private final String sha1;
+
+		private Entry(long size, long lastModified, String sha1) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.sha1 = sha1;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Entry))
+				return false;
+			Entry other = (Entry) obj;
+			return size == other.size && sha1.equals(other.sha1);
+		}
+
+		@Override
+		public int hashCode() {
+			return sha1.hashCode();
+		}
+	}
+
+	/**
+	 * Install the staged plugins if anything changed since the last install
+	 * @return true if the installer was run
+	 */
+	public boolean installPlugins(){
+
+		String[] staged = new File(pluginsInstall).list();
+		if(staged == null || staged.length == 0)
+			return false;
+
+		long start = System.nanoTime();
+		Map<String, Entry> previous = readManifest();
+		Map<String, Entry> current;
+		try {
+			current = computeManifest(previous);
+		}
+		catch (IOException e) {
+			logger.warn("plugins.manifest.failed", "error", e.getMessage());
+			current = null;
+		}
+
+		if(current != null && current.equals(previous)){
+			logger.info("plugins.unchanged", "millis", millis(start));
+			return false;
+		}
+
+		synchronized (stagedPlugins) {
+			for (Map.Entry<String, long[]> plugin : stagedPlugins.entrySet())
+				logger.info("plugins.staged", "plugin", plugin.getKey(), "bytes", plugin.getValue()[0],
+						"hash_millis", TimeUnit.NANOSECONDS.toMillis(plugin.getValue()[1]));
+			stagedPlugins.clear();
+		}
+
+		long install = System.nanoTime();
+		try {
+			new PluginInstaller(pluginsBin, pluginsInstall, ".").installPlugins(true, false);
+		}
+		catch (Exception e) {
+			logger.warn("plugins.install.failed", e, "folder", pluginsInstall);
+
+			// Without a manifest the install is tried again on the next cycle
+			if(!manifestFile.delete() && manifestFile.exists())
+				logger.warn("plugins.manifest.delete.failed", "file", manifestFile.getPath());
+			return true;
+		}
+		logger.info("plugins.installed", "folder", pluginsInstall, "millis", millis(install), "staged", Arrays.toString(staged));
+
+		// State left by the installer, compared against on the next cycle
+		try {
+			writeManifest(computeManifest(current != null ? current : previous));
+		}
+		catch (IOException e) {
+			logger.warn("plugins.manifest.save.failed", "error", e.getMessage());
+		}
+		return true;
+	}
+
+	/** Add a file to the report of its staged plugin */
+	private void addStaged(String file, long size, long nanos){
+		if(!file.startsWith(pluginsInstall))
+			return;
+		Path relative = new File(pluginsInstall).toPath().relativize(new File(file).toPath());
+		if(relative.getNameCount() == 0)
+			return;
+
+		String plugin = relative.getName(0).toString();
+		synchronized (stagedPlugins) {
+			long[] report = stagedPlugins.get(plugin);
+			if(report == null)
+				stagedPlugins.put(plugin, report = new long[2]);
+			report[0] += size;
+			report[1] += nanos;
+		}
+	}
+
+	private static long millis(long start){
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * Compute the manifest of both plugins folders, hashing in parallel only the files whose size or modification time changed
+	 * @param known - entries that can be reused
+	 */
+	private Map<String, Entry> computeManifest(final Map<String, Entry> known) throws IOException{
+
+		final Map<String, BasicFileAttributes> files = new TreeMap<String, BasicFileAttributes>();
+		list(new File(pluginsBin), files);
+		list(new File(pluginsInstall), files);
+
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			Map<String, Future<Entry>> futures = new TreeMap<String, Future<Entry>>();
+			for (final Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+				final long size = file.getValue().size();
+				final long lastModified = file.getValue().lastModifiedTime().toMillis();
+				final Entry old = known.get(file.getKey());
+
+				futures.put(file.getKey(), pool.submit(new Callable<Entry>() {
+					@Override
+					public Entry call() throws IOException {
+						if(old != null && old.size == size && old.lastModified == lastModified) {
+							addStaged(file.getKey(), size, 0);
+							return old;
+						}
+
+						long start = System.nanoTime();
+						Entry entry = new Entry(size, lastModified, LauncherUtilities.sha1(new File(file.getKey())));
+						addStaged(file.getKey(), size, System.nanoTime() - start);
+						return entry;
+					}
+				}));
+			}
+
+			Map<String, Entry> manifest = new TreeMap<String, Entry>();
+			for (Map.Entry<String, Future<Entry>> future : futures.entrySet())
+				manifest.put(future.getKey(), future.getValue().get());
+			return manifest;
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static void list(File folder, final Map<String, BasicFileAttributes> files) throws IOException{
+		if(!folder.isDirectory())
+			return;
+
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				files.put(file.toString(), attrs);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private Map<String, Entry> readManifest(){
+		Map<String, Entry> manifest = new TreeMap<String, Entry>();
+		if(!manifestFile.isFile())
+			return manifest;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if(fields.length == 4)
+					manifest.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			logger.warn("plugins.manifest.invalid", "file", manifestFile.getPath());
+			manifest.clear();
+		}
+		return manifest;
+	}
+
+	private void writeManifest(Map<String, Entry> manifest) throws IOException{
+		List<String> lines = new ArrayList<String>(manifest.size());
+		for (Map.Entry<String, Entry> entry : manifest.entrySet())
+			lines.add(entry.getKey() + "\t" + entry.getValue().size + "\t" + entry.getValue().lastModified + "\t" + entry.getValue().sha1);
+
+		File temp = new File(manifestFile.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+			for (String line : lines) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,105 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reads information about the merlin process from <code>/proc</code> (Linux only).
+ */
+final class ProcessProbe {
+
+	private ProcessProbe(){
+	}
+
+	/**
+	 * Get the operating system id of a process, through <code>Process.pid()</code> when available (Java 9+)
+	 * or the <code>pid</code> field of the Java 8 UNIXProcess implementation
+	 * @param process - started process
+	 * @return the pid, or -1 if it can not be determined
+	 */
+	public static long getPid(Process process){
+		try {
+			Method pid = Process.class.getMethod("pid");
+			return ((Number) pid.invoke(process)).longValue();
+		}
+		catch (Exception e) {
+			// Java 8
+		}
+		try {
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getLong(process);
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/** @return true if <code>/proc</code> can be used to read the process */
+	public static boolean isSupported(long pid){
+		return pid > 0 && new File("/proc/" + pid + "/status").isFile();
+	}
+
+	/**
+	 * Read the resident size, its peak and the number of threads from <code>/proc/&lt;pid&gt;/status</code>
+	 * @param pid - process id
+	 * @return {VmRSS in bytes, VmHWM in bytes, Threads}, each -1 if not available
+	 */
+	public static long[] readStatus(long pid){
+		long[] status = {-1, -1, -1};
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if(line.startsWith("VmRSS:"))
+					status[0] = parseFirst(line) * 1024;
+				else if(line.startsWith("VmHWM:"))
+					status[1] = parseFirst(line) * 1024;
+				else if(line.startsWith("Threads:"))
+					status[2] = parseFirst(line);
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			// Process already exited
+		}
+		return status;
+	}
+
+	private static long parseFirst(String line){
+		String[] fields = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+		return Long.parseLong(fields[0]);
+	}
+
+	/**
+	 * Read the CPU time used by the process (utime + stime of <code>/proc/&lt;pid&gt;/stat</code>)
+	 * @param pid - process id
+	 * @return the CPU time in clock ticks, -1 if not available
+	 */
+	public static long readCpuTicks(long pid){
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"))) {
+			String line = reader.readLine();
+			if(line == null)
+				return -1;
+
+			// The command name may contain spaces, fields are counted after its closing parenthesis
+			String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+			return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+		}
+		catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Count the open file descriptors of the process
+	 * @param pid - process id
+	 * @return the number of descriptors, -1 if not available
+	 */
+	public static long countOpenFiles(long pid){
+		String[] fds = new File("/proc/" + pid + "/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+}
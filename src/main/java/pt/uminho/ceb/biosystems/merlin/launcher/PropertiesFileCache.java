@@ -0,0 +1,64 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the external <code>.properties</code> files referenced by the configuration.
+ * <p>Each file is loaded once per path and modification time and the result is shared by every
+ * {@link PropertiesManager} created by the launcher, across restart cycles.
+ */
+final class PropertiesFileCache {
+
+	// Loaded files <Absolute path, Entry>
+	private static final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	private PropertiesFileCache(){
+	}
+
+	private static final class Entry {
+		private final long lastModified;
+		private final long length;
+		private final Properties properties;
+
+		private Entry(long lastModified, long length, Properties properties) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.properties = properties;
+		}
+	}
+
+	/**
+	 * Get the properties of a file, loading it only if it was not loaded before or changed since.
+	 * <p>The returned object is shared and must not be modified.
+	 * @param file - file with properties
+	 * @return the properties of the file
+	 * @throws IOException
+	 */
+	public static Properties load(File file) throws IOException{
+		String key = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		Entry entry = cache.get(key);
+		if(entry != null && entry.lastModified == lastModified && entry.length == length)
+			return entry.properties;
+
+		Properties p = new Properties();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			p.load(reader);
+		}
+		cache.put(key, new Entry(lastModified, length, p));
+		return p;
+	}
+
+	/** Remove all loaded files from the cache */
+	public static void clear(){
+		cache.clear();
+	}
+}
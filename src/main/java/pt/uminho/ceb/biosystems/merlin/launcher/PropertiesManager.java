@@ -1,9 +1,11 @@
 package pt.uminho.ceb.biosystems.merlin.launcher;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -12,27 +14,24 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Class that manage all the Properties needed in OptFlux from a specific file
  *
  */
 class PropertiesManager {
+
+	private static final LauncherLog logger = LauncherLog.get(PropertiesManager.class);
 	
 	// Path of XML file
 	private String filePath;
 	
-	// HashMap of properties <Name Property, Value of property>
-	private HashMap<String, String> propertiesDictionary;
+	// Properties <Name Property, Values of property>
+	private PropertyValues propertiesDictionary;
 	
 	// Map that will be different according to the OS
 	private Map<String, String> osDictionary;
@@ -40,9 +39,15 @@ class PropertiesManager {
 	// Map with all the system properties
 	private Map<String, String> systemProperties;
 	
+	// Paths of the property files referenced by the XML file
+	private List<String> referencedFiles = new ArrayList<String>();
+	
 	
-	// XML document
-	private Document doc;
+	// Entries read from the XML file, in document order
+	private List<PropertyEntry> staticProperties;
+	private List<FileEntry> fileProperties;
+	
+	private static final XMLInputFactory xmlInputFactory = createInputFactory();
 	
 	// Tags from Property File
 	public static final String PROPERTIES = "properties";
@@ -93,21 +98,18 @@ class PropertiesManager {
 		    });
 	
 	/**
-	 * Create Manager with existent dictionary(HashMap) of properties
+	 * Create Manager with existent dictionary of properties
 	 * @param filePath - Path and Name of file with properties
-	 * @param propDict - Dictionary with properties(HashMap)
+	 * @param propDict - Dictionary with properties
 	 * @throws FileNotFoundException 
 	 */
-	public PropertiesManager(String filePath, HashMap<String, String> propDict) throws FileNotFoundException{
+	public PropertiesManager(String filePath, Map<String, String> propDict) throws FileNotFoundException{
 		this.setFilePath(filePath);
 		
 		if(!(new File(filePath).exists()))
 			throw new FileNotFoundException("File not found: "+ filePath);
 		
-		if(propDict!=null)
-			setPropertiesDictionary(propDict);
-		else
-			setPropertiesDictionary(new HashMap<String, String>());
+		setPropertiesDictionary(propDict);
 		
 		os = detectOS();
 		setOSDictionary();
@@ -115,7 +117,7 @@ class PropertiesManager {
 	}
 
 	/**
-	 * Create Manager and new dictionary(HashMap) of properties
+	 * Create Manager and new dictionary of properties
 	 * @param filePath - Path and Name of file with properties
 	 * @throws FileNotFoundException 
 	 */
@@ -131,12 +133,26 @@ class PropertiesManager {
 		this.filePath = filePath;
 	}
 
-	public HashMap<String, String> getPropertiesDictionary() {
+	/** @return a new map with the values of each property joined with {@link #SEPARATOR} */
+	public Map<String, String> getPropertiesDictionary() {
+		return propertiesDictionary.toMap();
+	}
+
+	/** @return the store with all the values of each property */
+	public PropertyValues getPropertyValues() {
 		return propertiesDictionary;
 	}
 
-	public void setPropertiesDictionary(HashMap<String, String> propertiesDictionary) {
-		this.propertiesDictionary = propertiesDictionary;
+	public void setPropertiesDictionary(Map<String, String> propertiesDictionary) {
+		this.propertiesDictionary = new PropertyValues();
+		if(propertiesDictionary != null)
+			for (Map.Entry<String, String> property : propertiesDictionary.entrySet())
+				this.propertiesDictionary.add(property.getKey(), property.getValue());
+	}
+	
+	/** @return paths of the property files referenced in the last load */
+	public List<String> getReferencedFiles() {
+		return referencedFiles;
 	}
 	
 	/** Check current OS and instantiates the correspondent Dictionary */
@@ -160,52 +176,115 @@ class PropertiesManager {
 			systemProperties.put((String)prop, (String)p.get(prop));
 	}
 	
-	/** Initialize XML Reader */
-	private void initReader(){
+	/** XML element with a name/value pair (property or propertyFILE) */
+	private static final class PropertyEntry {
+		private final String name;
+		private final String value;
+		private final boolean unique;
+		private final boolean append;
+		private final String systemSource;
 		
-		File fXmlFile = new File(getFilePath());
-		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder dBuilder = null;
+		private PropertyEntry(XMLStreamReader reader){
+			this.name = attribute(reader, NAME);
+			this.value = attribute(reader, VALUE);
+			this.unique = reader.getAttributeValue(null, UNIQUE) != null;
+			this.append = reader.getAttributeValue(null, APPEND) != null;
+			this.systemSource = attribute(reader, SYSTEMSOURCE);
+		}
+	}
+	
+	/** propertiesFILE element with its propertyFILE children */
+	private static final class FileEntry {
+		private final String file;
+		private final List<PropertyEntry> properties = new ArrayList<PropertyEntry>();
 		
-		// A XML validation is needed
-		try {
-			dBuilder = dbFactory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			e.printStackTrace();
+		private FileEntry(String file){
+			this.file = file;
 		}
+	}
+	
+	private static XMLInputFactory createInputFactory(){
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+	
+	/** @return the attribute value, or an empty String if the attribute does not exist (as in DOM) */
+	private static String attribute(XMLStreamReader reader, String name){
+		String value = reader.getAttributeValue(null, name);
+		return value == null ? "" : value;
+	}
+	
+	/** Read the XML file in a single forward pass, collecting the property elements */
+	private boolean initReader(){
 		
-		try {
-			doc = dBuilder.parse(fXmlFile);
-		} catch (SAXException e) {
-			System.out.println("Error in file: "+ filePath);
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+		staticProperties = new ArrayList<PropertyEntry>();
+		fileProperties = new ArrayList<FileEntry>();
+		FileEntry currentFile = null;
+		
+		XMLStreamReader reader = null;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(getFilePath()))) {
+			reader = xmlInputFactory.createXMLStreamReader(in);
+			
+			while(reader.hasNext()){
+				int event = reader.next();
+				
+				if(event == XMLStreamConstants.START_ELEMENT){
+					String tag = reader.getLocalName();
+					
+					if(PROPERTY.equals(tag))
+						staticProperties.add(new PropertyEntry(reader));
+					else if(PROPERTIESFILE.equals(tag)){
+						currentFile = new FileEntry(attribute(reader, FILE));
+						fileProperties.add(currentFile);
+					}
+					else if(PROPERTYFILE.equals(tag) && currentFile != null)
+						currentFile.properties.add(new PropertyEntry(reader));
+				}
+				else if(event == XMLStreamConstants.END_ELEMENT && PROPERTIESFILE.equals(reader.getLocalName()))
+					currentFile = null;
+			}
+			return true;
+		} catch (XMLStreamException e) {
+			logger.error("config.parse.failed", e, "file", filePath);
 		} catch (IOException e) {
-			e.printStackTrace();
+			logger.error("config.read.failed", e, "file", filePath);
+		} finally {
+			if(reader != null)
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {}
 		}
-		
-		if(doc != null)
-			doc.getDocumentElement().normalize();
+		return false;
 	}
 	
 	/**
 	 * Put Property in Dictionary. 
-	 * <p>If Property already exists then add, if not then create new.
+	 * <p>If Property already exists then add the value, unless it already has it, if not then create new.
 	 * <p>If there is no Value then the Property is not placed in the Dictionary 
 	 * @param key - Name of Property
 	 * @param value - Value of Property
 	 */
 	public void putProperty(String key, String value){
-		// Change key correspondent to the key of OS
-		if(osDictionary != null && osDictionary.containsKey(key))
-			key = osDictionary.get(key);
-		
 		// Maybe it will be necessary to make the same for Values
-		
-		if(getPropertiesDictionary().containsKey(key))
-			getPropertiesDictionary().put(key, getPropertiesDictionary().get(key) + SEPARATOR + value);
-		else
-			getPropertiesDictionary().put(key, value);
+		propertiesDictionary.add(getOSKey(key), value);
+	}
+	
+	/** Change key correspondent to the key of OS */
+	private String getOSKey(String key){
+		if(osDictionary != null && osDictionary.containsKey(key))
+			return osDictionary.get(key);
+		return key;
+	}
+	
+	/**
+	 * Put each segment of a system value (such as PATH) in Dictionary, skipping the ones the Property already has
+	 * @param key - Name of Property
+	 * @param value - Value with segments separated by {@link #SEPARATOR}
+	 */
+	private void putSystemProperty(String key, String value){
+		propertiesDictionary.addSegments(getOSKey(key), value);
 	}
 	
 	/**
@@ -228,25 +307,25 @@ class PropertiesManager {
 	 * @param value - Property Value
 	 */
 	public void putUniqueProperty(String key, String value){
-		// Change key correspondent to the key of OS
-		if(osDictionary != null && osDictionary.containsKey(key))
-			key = osDictionary.get(key);
-		
 		// Maybe it will be necessary to make the same for Values
-		getPropertiesDictionary().put(key, value);
+		propertiesDictionary.replace(getOSKey(key), value);
 	}
 	
 	/**
-	 * Put in Dictionary(HashMap) all the Properties defined in the files
+	 * Put in Dictionary all the Properties defined in the files
 	 */
 	public void loadProperties(){
 		
-		initReader();
-		if(doc != null)
+		referencedFiles.clear();
+		
+		// Nothing is loaded from a file that could not be read until the end
+		if(initReader())
 		{
 			getStaticProperties();
 			getFileProperties();
 		}
+		staticProperties = null;
+		fileProperties = null;
 	}
 	
 	/**
@@ -255,6 +334,7 @@ class PropertiesManager {
 	 */
 	public void setPropertiesInEnvironment(ProcessBuilder pb){
 		for(String property : propertiesDictionary.keySet()){
+			// Values are only joined here
 			pb.environment().put(property, propertiesDictionary.get(property));
 		}
 	}
@@ -271,42 +351,37 @@ class PropertiesManager {
 	}
 	
 	/**
-	 * Put in Dictionary(HashMap) the Properties that are defined in the present file
+	 * Put in Dictionary the Properties that are defined in the present file
 	 */
 	private void getStaticProperties()
 	{
-		NodeList nList = doc.getElementsByTagName(PROPERTY);
-		
-		for (int i = 0; i < nList.getLength(); i++) {
-			 
-			Node nNode = nList.item(i);
+		for (PropertyEntry entry : staticProperties) {
 			
-			if(!addPropertyFromNode(nNode))
-				System.out.println("Warning - Property ignored, value not found in: " +((Element)nNode).getAttribute(NAME));
+			if(!addProperty(entry))
+				logger.warn("property.ignored", "name", entry.name, "reason", "no value");
 			
 		}
 	}
 	
-	private boolean addPropertyFromNode(Node nNode){
-		Element ele = ((Element)nNode);
+	private boolean addProperty(PropertyEntry entry){
 		
 		// return false if Node does not has value
-		if(ele.getAttribute(VALUE).equals(""))
+		if(entry.value.equals(""))
 			return false;
 		
 		// Property will be unique in dictionary if Node has UNIQUE attribute
-		if(ele.hasAttribute(UNIQUE))
-			putUniqueProperty(ele.getAttribute(NAME), ele.getAttribute(VALUE));
+		if(entry.unique)
+			putUniqueProperty(entry.name, entry.value);
 		else
-			putProperty(ele.getAttribute(NAME), ele.getAttribute(VALUE));
+			putProperty(entry.name, entry.value);
 			
 		// Append System Property if Node has APPEND attribute
 		// Can be from System Prop. with same name or different (SYSTEMSOURCE) 
-		if(ele.hasAttribute(APPEND)){
-			if(ele.hasAttribute(SYSTEMSOURCE) && !ele.getAttribute(SYSTEMSOURCE).equals(""))
-				appendPropertyValue(ele.getAttribute(NAME), ele.getAttribute(SYSTEMSOURCE));
+		if(entry.append){
+			if(!entry.systemSource.equals(""))
+				appendPropertyValue(entry.name, entry.systemSource);
 			else
-				appendPropertyValue(ele.getAttribute(NAME));
+				appendPropertyValue(entry.name);
 		}
 		
 		return true;
@@ -316,14 +391,14 @@ class PropertiesManager {
 	private void appendPropertyValue(String propertyName){
 		String propName = convertSystemProperty(propertyName);
 		if(systemProperties.containsKey(propName)){
-			putProperty(propName, systemProperties.get(propName));
+			putSystemProperty(propName, systemProperties.get(propName));
 		}
 	}
 	
 	/** Append different system property to Properties Dictionary */
 	private void appendPropertyValue(String propertyName, String systemSource){
 		if(systemProperties.containsKey(systemSource))
-			putProperty(propertyName, systemProperties.get(systemSource));
+			putSystemProperty(propertyName, systemProperties.get(systemSource));
 	}
 	
 	private String convertSystemProperty(String propertyName) {
@@ -335,54 +410,42 @@ class PropertiesManager {
 	}
 	
 	/**
-	 * Put in Dictionary(HashMap) the Properties that are defined in another file
+	 * Put in Dictionary the Properties that are defined in another file
 	 */
 	private void getFileProperties()
 	{
-		NodeList nList = doc.getElementsByTagName(PROPERTIESFILE);
-		
-		for (int temp = 0; temp < nList.getLength(); temp++) {
-			 
-			Node nNodeFile = nList.item(temp);
-			Element eElement = (Element) nNodeFile;
-			
-			NodeList nNodeListFileProperty = eElement.getElementsByTagName(PROPERTYFILE);
+		for (FileEntry fileEntry : fileProperties) {
 		
 			// File validation missing
-			File fileWithProperties = new File(eElement.getAttribute(FILE));
+			File fileWithProperties = new File(fileEntry.file);
+			referencedFiles.add(fileWithProperties.getPath());
 			if(fileWithProperties.exists()){
 				
+				// Shared between elements (and cycles) pointing at the same unchanged file
 				Properties p = new Properties();
 			    try {
-					p.load(new FileReader(fileWithProperties));
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
+					p = PropertiesFileCache.load(fileWithProperties);
 				} catch (IOException e) {
-					e.printStackTrace();
+					logger.warn("properties.file.read.failed", e, "file", fileWithProperties.getPath());
 				}
 			    
-				
-				for (int i = 0; i < nNodeListFileProperty.getLength(); i++) {
-					
-					Node nNodeProperty = nNodeListFileProperty.item(i);
+				for (PropertyEntry entry : fileEntry.properties) {
 	
 					// Verify if Property exists on File
-					if(p.containsKey(((Element)nNodeProperty).getAttribute(VALUE)))
+					if(p.containsKey(entry.value))
 					{
 						// Verify if Property has any value
-						if(p.getProperty(((Element)nNodeProperty).getAttribute(VALUE)).compareTo("") != 0)
-							putProperty(((Element)nNodeProperty).getAttribute(NAME), 
-									p.getProperty(((Element)nNodeProperty).getAttribute(VALUE)));					
+						if(p.getProperty(entry.value).compareTo("") != 0)
+							putProperty(entry.name, p.getProperty(entry.value));					
 						else
-							System.out.println("Warning - Property in file ignored, value not found in: " 
-									+((Element)nNodeProperty).getAttribute(VALUE) + " |File location: "+fileWithProperties.getPath());
+							logger.warn("property.ignored", "name", entry.value, "file", fileWithProperties.getPath(), "reason", "no value");
 					}
 					else
-						System.out.println("Warning - Property not found in file: "+((Element)nNodeProperty).getAttribute(VALUE) + " |File location: "+fileWithProperties.getPath());
+						logger.warn("property.ignored", "name", entry.value, "file", fileWithProperties.getPath(), "reason", "not found");
 				}
 			}
 			else
-				System.out.println("Warning - File not found: " + fileWithProperties.getPath());
+				logger.warn("properties.file.not.found", "file", fileWithProperties.getPath());
 		}
 	}
 			
@@ -396,7 +459,8 @@ class PropertiesManager {
 		return os;
 	}
 	
-	public Set<String> getJavaArgsOS(){
+	/** @return the arguments of the JVM, each JAVA_PARAM value as one argument */
+	public List<String> getJavaArgsOS(){
 		Set<String> javaArgs = new LinkedHashSet<String>();
 		if(os.equals(OSystem.MACOS)){
 			javaArgs.add("-Dapple.laf.useScreenMenuBar=true");
@@ -404,14 +468,9 @@ class PropertiesManager {
 			javaArgs.add("-Xdock:icon=conf/merlin_icon.png");
 		}
 		
-		String params = propertiesDictionary.get("JAVA_PARAM");
-		if(params!=null){
-			String data[] = params.split(SEPARATOR);
-			for(String d : data)
-				javaArgs.add(d);
-		}
+		javaArgs.addAll(propertiesDictionary.getValues("JAVA_PARAM"));
 		
-		return javaArgs;
+		return new ArrayList<String>(javaArgs);
 	}
 	
 	public ProcessBuilder constructProcess(){
@@ -434,7 +493,7 @@ class PropertiesManager {
 		
 		
 		System.out.println(System.getenv().get("HOME"));
-		System.out.println(propReader.getPropertiesDictionary().get("PATH"));
+		System.out.println(propReader.getPropertyValues().get("PATH"));
 		//System.out.println("../guiutilities/bin:../utilities/bin:../jecoli3/bin:../jecoli3/lib/*:../biocomponents/lib/*:../biocomponents/bin:../metabolic3/bin:../metabolic3/lib/*:../solvers2/bin:../availablemodelsapi/bin:../availablemodelsapi/lib/*:../biovisualizercore/bin:../biovisualizercore/lib/*:../metabolicvisualizer4optflux3/lib/*:../biologicalnetscore/bin:../biologicalnetscore/lib/*:../optfluxcore3/lib/*:../optfluxcore3/plugins_bin/*:/opt/ibm/ILOG/CPLEX_Studio125/cplex/lib/cplex.jar");
 		
 	}
@@ -443,7 +502,7 @@ class PropertiesManager {
 		
 		String ret = null;
 		if(!os.equals(OSystem.MACOS))
-			ret = getPropertiesDictionary().get("JRE");
+			ret = propertiesDictionary.get("JRE");
 		if(ret == null) ret = "java";
 		return ret;
 	}
@@ -0,0 +1,108 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Multi-valued store of properties, keeping for each name the ordered list of its values without duplicates.
+ * <p>Values are only joined with {@link PropertiesManager#SEPARATOR} when a single String is needed,
+ * for instance when the environment of the merlin process is built.
+ */
+final class PropertyValues {
+
+	// <Name of property, Values in insertion order>
+	private final Map<String, LinkedHashSet<String>> values = new LinkedHashMap<String, LinkedHashSet<String>>();
+
+	public PropertyValues(){
+	}
+
+	/**
+	 * Copy another store
+	 * @param other - store to copy
+	 */
+	public PropertyValues(PropertyValues other){
+		for (Map.Entry<String, LinkedHashSet<String>> entry : other.values.entrySet())
+			values.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+	}
+
+	/**
+	 * Add a value to a property, unless the property already has it
+	 * @param key - Name of Property
+	 * @param value - Value of Property
+	 */
+	public void add(String key, String value){
+		LinkedHashSet<String> current = values.get(key);
+		if(current == null){
+			current = new LinkedHashSet<String>();
+			values.put(key, current);
+		}
+		current.add(value);
+	}
+
+	/**
+	 * Add each segment of a joined value (such as a system PATH) to a property, skipping the empty and repeated ones
+	 * @param key - Name of Property
+	 * @param joined - Value with segments separated by {@link PropertiesManager#SEPARATOR}
+	 */
+	public void addSegments(String key, String joined){
+		for (String segment : joined.split(PropertiesManager.SEPARATOR))
+			if(!segment.isEmpty())
+				add(key, segment);
+	}
+
+	/**
+	 * Replace all the values of a property
+	 * @param key - Name of Property
+	 * @param value - Value of Property
+	 */
+	public void replace(String key, String value){
+		values.remove(key);
+		add(key, value);
+	}
+
+	public boolean containsKey(String key){
+		return values.containsKey(key);
+	}
+
+	public Set<String> keySet(){
+		return Collections.unmodifiableSet(values.keySet());
+	}
+
+	/** @return the values of a property in insertion order, empty if it is not defined */
+	public List<String> getValues(String key){
+		LinkedHashSet<String> current = values.get(key);
+		if(current == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<String>(current));
+	}
+
+	/** @return the values of a property joined with {@link PropertiesManager#SEPARATOR}, null if it is not defined */
+	public String get(String key){
+		LinkedHashSet<String> current = values.get(key);
+		if(current == null)
+			return null;
+		if(current.size() == 1)
+			return current.iterator().next();
+
+		StringBuilder joined = new StringBuilder();
+		for (String value : current) {
+			if(joined.length() > 0)
+				joined.append(PropertiesManager.SEPARATOR);
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	/** @return a new map with the joined value of each property */
+	public Map<String, String> toMap(){
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (String key : values.keySet())
+			map.put(key, get(key));
+		return map;
+	}
+}
@@ -0,0 +1,250 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Samples the CPU time, resident size, threads and open file descriptors of the merlin process from <code>/proc</code> (Linux only).
+ * <p>Samples are kept in fixed size ring buffers and summarized (p50, p95, max) at the end of each cycle.
+ * When a threshold is crossed for several consecutive samples the configured policy is applied: <code>warn</code>,
+ * or <code>restart</code>, which terminates the process so the launcher starts it again as if it had sent the restart signal.
+ */
+final class ResourceSupervisor implements Runnable {
+
+	private static final LauncherLog logger = LauncherLog.get(ResourceSupervisor.class);
+
+	// Properties of main.conf
+	public static final String SUPERVISOR = "supervisor";
+	public static final String SUPERVISORINTERVAL = "supervisorInterval";
+	public static final String SUPERVISORPOLICY = "supervisorPolicy";
+	public static final String SUPERVISORRSSLIMITMB = "supervisorRssLimitMB";
+	public static final String SUPERVISORTHREADLIMIT = "supervisorThreadLimit";
+	public static final String SUPERVISORFDLIMIT = "supervisorFdLimit";
+
+	public static final String POLICY_WARN = "warn";
+	public static final String POLICY_RESTART = "restart";
+
+	private static final long DEFAULT_INTERVAL = 2000;
+	private static final int CAPACITY = 4096;
+	private static final int CONSECUTIVE_SAMPLES = 3;
+
+	// USER_HZ, the unit of utime and stime in /proc/<pid>/stat, is 100 on every Linux architecture merlin runs on
+	private static final long CLOCK_TICKS = 100;
+
+	private static final String DIRECTORY = "supervisor";
+	private static final String SUMMARY_FILE = "supervisor.jsonl";
+
+	private final Process process;
+	private final long pid;
+	private final long interval;
+	private final boolean summary;
+	private final String policy;
+	private final long rssLimit;
+	private final long threadLimit;
+	private final long fdLimit;
+
+	private final SampleRing cpu = new SampleRing(CAPACITY);
+	private final SampleRing rss = new SampleRing(CAPACITY);
+	private final SampleRing threads = new SampleRing(CAPACITY);
+	private final SampleRing fds = new SampleRing(CAPACITY);
+
+	private volatile long peakRss = -1;
+	private volatile boolean restartRequested;
+	private int violations;
+	private Thread thread;
+
+	/** Ring buffer of primitive samples */
+	private static final class SampleRing {
+		private final long[] values;
+		private int next;
+		private int count;
+
+		private SampleRing(int capacity){
+			this.values = new long[capacity];
+		}
+
+		private synchronized void add(long value){
+			values[next] = value;
+			next = (next + 1) % values.length;
+			if(count < values.length)
+				count++;
+		}
+
+		/** @return {p50, p95, max} of the samples, -1 if there are none */
+		private synchronized long[] summarize(){
+			if(count == 0)
+				return new long[]{-1, -1, -1};
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			return new long[]{sorted[(count - 1) / 2], sorted[(int) Math.ceil(0.95 * count) - 1], sorted[count - 1]};
+		}
+	}
+
+	private ResourceSupervisor(Process process, long pid, LaunchConfiguration config){
+		this.process = process;
+		this.pid = pid;
+		this.interval = getLong(config, SUPERVISORINTERVAL, DEFAULT_INTERVAL);
+		this.summary = isEnabled(config);
+		String policy = config.getProperty(SUPERVISORPOLICY);
+		this.policy = policy == null ? POLICY_WARN : policy.trim().toLowerCase();
+		this.rssLimit = getLong(config, SUPERVISORRSSLIMITMB, -1) * 1024 * 1024;
+		this.threadLimit = getLong(config, SUPERVISORTHREADLIMIT, -1);
+		this.fdLimit = getLong(config, SUPERVISORFDLIMIT, -1);
+	}
+
+	/** @return true if the configuration enables the supervisor */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return Boolean.parseBoolean(config.getProperty(SUPERVISOR));
+	}
+
+	/**
+	 * Start sampling the merlin process, when the supervisor or the heap sizing are enabled
+	 * @param process - merlin process
+	 * @param config - launch configuration
+	 * @return the running supervisor, or null if it is not enabled or the process can not be sampled
+	 */
+	public static ResourceSupervisor start(Process process, LaunchConfiguration config){
+		if(!isEnabled(config) && !HeapSizing.isEnabled(config))
+			return null;
+
+		long pid = ProcessProbe.getPid(process);
+		if(!ProcessProbe.isSupported(pid))
+			return null;
+
+		ResourceSupervisor supervisor = new ResourceSupervisor(process, pid, config);
+		supervisor.thread = new Thread(supervisor, "merlin-supervisor");
+		supervisor.thread.setDaemon(true);
+		supervisor.thread.start();
+		return supervisor;
+	}
+
+	private static long getLong(LaunchConfiguration config, String property, long defaultValue){
+		String value = config.getProperty(property);
+		try {
+			if(value != null)
+				return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", property, "value", value);
+		}
+		return defaultValue;
+	}
+
+	@Override
+	public void run() {
+		long lastCpu = -1, lastTime = -1;
+		try {
+			while(process.isAlive()){
+				long time = System.nanoTime();
+				long cpuTime = ProcessProbe.readCpuTicks(pid);
+				long[] status = ProcessProbe.readStatus(pid);
+				long openFds = ProcessProbe.countOpenFiles(pid);
+
+				if(cpuTime >= 0 && lastCpu >= 0){
+					// Percentage of one core since the last sample
+					long cpuNanos = (cpuTime - lastCpu) * (1000000000L / CLOCK_TICKS);
+					cpu.add(100 * cpuNanos / Math.max(1, time - lastTime));
+				}
+				lastCpu = cpuTime;
+				lastTime = time;
+
+				if(status[0] >= 0)
+					rss.add(status[0]);
+				if(status[1] > peakRss)
+					peakRss = status[1];
+				if(status[2] >= 0)
+					threads.add(status[2]);
+				if(openFds >= 0)
+					fds.add(openFds);
+
+				applyPolicy(status[0], status[2], openFds);
+				Thread.sleep(interval);
+			}
+		}
+		catch (InterruptedException e) {
+			// Process exited
+		}
+	}
+
+	private void applyPolicy(long rssBytes, long threadCount, long openFds){
+		String violation = null;
+		if(rssLimit > 0 && rssBytes > rssLimit)
+			violation = "RSS " + (rssBytes / (1024 * 1024)) + " MB over " + (rssLimit / (1024 * 1024)) + " MB";
+		else if(threadLimit > 0 && threadCount > threadLimit)
+			violation = "threads " + threadCount + " over " + threadLimit;
+		else if(fdLimit > 0 && openFds > fdLimit)
+			violation = "open files " + openFds + " over " + fdLimit;
+
+		if(violation == null){
+			violations = 0;
+			return;
+		}
+		if(++violations != CONSECUTIVE_SAMPLES)
+			return;
+
+		if(POLICY_RESTART.equals(policy) && !restartRequested){
+			logger.warn("supervisor.restart", "pid", pid, "violation", violation);
+			restartRequested = true;
+			process.destroy();
+		}
+		else
+			logger.warn("supervisor.violation", "pid", pid, "violation", violation);
+	}
+
+	/** Stop sampling, waiting for the sampling thread to finish */
+	public void stop() throws InterruptedException{
+		thread.interrupt();
+		thread.join();
+	}
+
+	/** @return true if the process was terminated by the restart policy */
+	public boolean isRestartRequested() {
+		return restartRequested;
+	}
+
+	/** @return the peak resident size (VmHWM) seen in the samples, -1 if none */
+	public long getPeakRss() {
+		return peakRss;
+	}
+
+	/**
+	 * Append the summary of the samples of this cycle to <code>supervisor.jsonl</code>, if the supervisor is enabled
+	 * @param exitCode - exit code of the merlin process
+	 */
+	public void writeSummary(int exitCode){
+		if(!summary)
+			return;
+
+		long[] cpuSummary = cpu.summarize(), rssSummary = rss.summarize(), threadSummary = threads.summarize(), fdSummary = fds.summarize();
+		StringBuilder line = new StringBuilder(256);
+		line.append("{\"timestamp\":").append(System.currentTimeMillis())
+			.append(",\"pid\":").append(pid)
+			.append(",\"exit_code\":").append(exitCode)
+			.append(",\"restart_requested\":").append(restartRequested)
+			.append(",\"samples\":").append(rss.count);
+		append(line, "cpu_percent", cpuSummary);
+		append(line, "rss_bytes", rssSummary);
+		append(line, "threads", threadSummary);
+		append(line, "open_files", fdSummary);
+		line.append('}');
+
+		File file = new File(LauncherUtilities.getCacheDirectory(DIRECTORY), SUMMARY_FILE);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+			writer.write(line.toString());
+			writer.newLine();
+		}
+		catch (IOException e) {
+			logger.warn("supervisor.summary.failed", "error", e.getMessage());
+		}
+		logger.info("supervisor.summary", "pid", pid, "rss_p95_mb", rssSummary[1] / (1024 * 1024), "cpu_p95", cpuSummary[1],
+				"threads_max", threadSummary[2], "open_files_max", fdSummary[2]);
+	}
+
+	private static void append(StringBuilder line, String name, long[] summary){
+		line.append(",\"").append(name).append("\":{\"p50\":").append(summary[0])
+			.append(",\"p95\":").append(summary[1])
+			.append(",\"max\":").append(summary[2]).append('}');
+	}
+}
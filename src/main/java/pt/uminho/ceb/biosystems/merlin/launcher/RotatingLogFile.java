@@ -0,0 +1,96 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Log file rotated by size, keeping a fixed number of old files (<code>merlin.log.1</code>, <code>merlin.log.2</code>...).
+ * <p>Once a write fails (disk full, for instance) the output is dropped and counted, the writer never blocks the caller.
+ */
+final class RotatingLogFile {
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final File file;
+	private final long maxSize;
+	private final int maxFiles;
+
+	private OutputStream out;
+	private long size;
+	private long dropped;
+
+	/**
+	 * @param file - current log file
+	 * @param maxSize - size in bytes that triggers a rotation, 0 or less for no limit
+	 * @param maxFiles - number of rotated files to keep
+	 */
+	public RotatingLogFile(File file, long maxSize, int maxFiles){
+		this.file = file;
+		this.maxSize = maxSize;
+		this.maxFiles = maxFiles;
+	}
+
+	/** Rotate the existing file, if any, and open a new one */
+	public synchronized void open() throws IOException{
+		close();
+		if(file.length() > 0)
+			shift();
+		out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+		size = 0;
+	}
+
+	public synchronized void write(byte[] bytes, int offset, int length){
+		if(out == null){
+			dropped += length;
+			return;
+		}
+		try {
+			if(maxSize > 0 && size > 0 && size + length > maxSize)
+				open();
+			out.write(bytes, offset, length);
+			size += length;
+		}
+		catch (IOException e) {
+			dropped += length;
+			close();
+		}
+	}
+
+	public synchronized void flush(){
+		if(out != null)
+			try {
+				out.flush();
+			} catch (IOException e) {}
+	}
+
+	public synchronized void close(){
+		if(out != null)
+			try {
+				out.close();
+			} catch (IOException e) {}
+		out = null;
+	}
+
+	/** @return the number of bytes that could not be written */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/** Rename file.(n-1) to file.n down to file to file.1, removing the oldest */
+	private void shift(){
+		File oldest = new File(file.getPath() + "." + maxFiles);
+		oldest.delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File from = new File(file.getPath() + "." + i);
+			if(from.exists())
+				from.renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		if(maxFiles > 0)
+			file.renameTo(new File(file.getPath() + ".1"));
+		else
+			file.delete();
+	}
+}
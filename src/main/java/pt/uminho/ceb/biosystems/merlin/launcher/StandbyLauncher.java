@@ -0,0 +1,60 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Main class of a warm standby merlin process.
+ * <p>The process boots up to the readiness barrier given by the <code>merlin.standby.barrier</code> system property,
+ * then waits on its standard input until the launcher releases it, and only then runs the main class given as first argument.
+ * <ul>
+ * <li><code>jvm</code> - only the JVM is booted</li>
+ * <li><code>classes</code> - the main class is also loaded, but not initialized: its static initializers only run
+ * once released, like in a cold start</li>
+ * </ul>
+ */
+public class StandbyLauncher {
+
+	public static final String BARRIER = "merlin.standby.barrier";
+	public static final String BARRIER_JVM = "jvm";
+	public static final String BARRIER_CLASSES = "classes";
+
+	// Line written by the launcher to release the process
+	public static final String RELEASE = "start";
+
+	public static void main(String... args) throws Throwable {
+
+		if(args.length == 0){
+			System.err.println("Usage: StandbyLauncher <main class> [arguments]");
+			System.exit(1);
+		}
+
+		Method main = null;
+		if(BARRIER_CLASSES.equals(System.getProperty(BARRIER, BARRIER_JVM)))
+			main = getMain(args[0]);
+
+		// Blocks until released, the pipe is closed (EOF) when the launcher discards this process
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		if(!RELEASE.equals(in.readLine()))
+			System.exit(0);
+
+		if(main == null)
+			main = getMain(args[0]);
+
+		try {
+			main.invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static Method getMain(String className) throws ClassNotFoundException, NoSuchMethodException{
+		// Loaded only, initializing it before the release would run merlin code while the current process runs
+		Class<?> mainClass = Class.forName(className, false, StandbyLauncher.class.getClassLoader());
+		return mainClass.getMethod("main", String[].class);
+	}
+}
@@ -0,0 +1,182 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Next generation merlin process, started while the current one is still running.
+ * <p>The process runs {@link StandbyLauncher}, which holds it at the readiness barrier until it is released
+ * through its standard input, so a restart only costs the handshake instead of a cold JVM start.
+ */
+final class WarmStandby {
+
+	private static final LauncherLog logger = LauncherLog.get(WarmStandby.class);
+
+	// Properties of main.conf
+	public static final String STANDBY = "standby";
+	public static final String STANDBYBARRIER = "standbybarrier";
+
+	private final LaunchConfiguration config;
+	private final List<String> command;
+	private final Process process;
+
+	private WarmStandby(LaunchConfiguration config, List<String> command, Process process){
+		this.config = config;
+		this.command = command;
+		this.process = process;
+	}
+
+	/** @return true if the configuration enables the warm standby */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return Boolean.parseBoolean(config.getProperty(STANDBY));
+	}
+
+	/**
+	 * Start a standby process for the given command
+	 * @param config - configuration used to build the command
+	 * @param command - command of the merlin process, ending with the main class and its arguments
+	 * @param log - file for the standard output (appended)
+	 * @param logError - file for the standard error (appended)
+	 * @param pipeOutput - keep the output in pipes, to be read by a {@link ChildOutputPump} once released
+	 * @param control - control channel of the session, null if none
+	 * @return the standby process, or null if it could not be started
+	 */
+	public static WarmStandby spawn(LaunchConfiguration config, List<String> command, String log, String logError, boolean pipeOutput,
+			ControlChannel control){
+
+		// The classpath is either "-cp <classpath>" or an @argfile, followed by the main class
+		int cp = command.indexOf("-cp");
+		int cpLength = 2;
+		if(cp < 0) {
+			for (int i = 0; i < command.size() && cp < 0; i++)
+				if(command.get(i).startsWith("@"))
+					cp = i;
+			cpLength = 1;
+		}
+		if(cp < 0 || cp + cpLength >= command.size())
+			return null;
+
+		// A training run of the class data sharing archive must finish before the archive is used
+		for (String arg : command)
+			if(arg.startsWith("-XX:ArchiveClassesAtExit"))
+				return null;
+
+		String barrier = config.getProperty(STANDBYBARRIER);
+		if(barrier == null)
+			barrier = StandbyLauncher.BARRIER_CLASSES;
+
+		List<String> standbyCommand = new ArrayList<String>(command.subList(0, cp));
+		standbyCommand.add("-D" + StandbyLauncher.BARRIER + "=" + barrier);
+		standbyCommand.addAll(command.subList(cp, cp + cpLength));
+		standbyCommand.add(StandbyLauncher.class.getName());
+		standbyCommand.addAll(command.subList(cp + cpLength, command.size()));
+
+		ProcessBuilder pb = new ProcessBuilder(standbyCommand);
+		config.setPropertiesInEnvironment(pb);
+		// Merlin only opens the channel once released, after the launcher cleared it
+		if(control != null)
+			control.setEnvironment(pb);
+
+		// The current process is still writing to the logs, they must not be truncated
+		if(!pipeOutput) {
+			pb.redirectOutput(Redirect.appendTo(new File(log)));
+			pb.redirectError(Redirect.appendTo(new File(logError)));
+		}
+
+		try {
+			return new WarmStandby(config, new ArrayList<String>(command), pb.start());
+		}
+		catch (IOException e) {
+			logger.warn("standby.start.failed", "error", e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Check if this process can replace a cold start of the given command
+	 * <p>The heap, metaspace, collector and GC log flags are chosen again every cycle by the heap sizing and the GC
+	 * tuning, and are left out of the comparison; the standby is still discarded when the new heap is larger or the
+	 * collector changed.
+	 * @param current - current launch configuration
+	 * @param currentCommand - command that would be used for a cold start
+	 * @return true if the process is alive and was started with the same configuration and command
+	 */
+	public boolean canRelease(LaunchConfiguration current, List<String> currentCommand){
+		if(!process.isAlive() || config != current || current.isStale())
+			return false;
+		if(!withoutTuning(command).equals(withoutTuning(currentCommand)))
+			return false;
+
+		long heap = getMaxHeap(command), currentHeap = getMaxHeap(currentCommand);
+		if(currentHeap > heap) {
+			logger.info("standby.heap.smaller", "heap_mb", heap >> 20, "next_heap_mb", currentHeap >> 20);
+			return false;
+		}
+
+		String collector = getCollector(command), currentCollector = getCollector(currentCommand);
+		if(collector == null ? currentCollector != null : !collector.equals(currentCollector)) {
+			logger.info("standby.collector.changed", "collector", collector, "next_collector", currentCollector);
+			return false;
+		}
+		return true;
+	}
+
+	/** @return the collector selected by a command, null for the default of the JVM */
+	private static String getCollector(List<String> command){
+		String collector = null;
+		for (String arg : command)
+			if(arg.matches("-XX:\\+Use\\w+GC"))
+				collector = arg;
+		return collector;
+	}
+
+	/** @return the command without the flags tuned for each cycle */
+	private static List<String> withoutTuning(List<String> command){
+		List<String> args = new ArrayList<String>();
+		for (String arg : command)
+			if(!arg.startsWith("-Xmx") && !arg.startsWith("-Xms") && !arg.startsWith("-XX:MaxMetaspaceSize=")
+					&& !arg.matches("-XX:[+-]Use\\w+GC") && !arg.startsWith("-Xlog:gc") && !arg.startsWith("-Xloggc:")
+					&& !arg.equals("-XX:+PrintGCTimeStamps"))
+				args.add(arg);
+		return args;
+	}
+
+	/** @return the maximum heap of a command in bytes, 0 if it is not set */
+	private static long getMaxHeap(List<String> command){
+		long heap = 0;
+		for (String arg : command)
+			if(arg.startsWith("-Xmx"))
+				heap = Math.max(0, GcTuning.parseSize(arg.substring(4)));
+		return heap;
+	}
+
+	/** @return the merlin command of the process, without the standby launcher */
+	public List<String> getCommand() {
+		return command;
+	}
+
+	/**
+	 * Release the process from the readiness barrier
+	 * @return the released merlin process
+	 * @throws IOException if the handshake failed
+	 */
+	public Process release() throws IOException{
+		OutputStream out = process.getOutputStream();
+		out.write((StandbyLauncher.RELEASE + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		return process;
+	}
+
+	/** Terminate the process without releasing it */
+	public void discard(){
+		try {
+			process.getOutputStream().close();
+		} catch (IOException e) {}
+		process.destroy();
+	}
+}
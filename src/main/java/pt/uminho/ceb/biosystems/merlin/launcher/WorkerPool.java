@@ -0,0 +1,193 @@
+package pt.uminho.ceb.biosystems.merlin.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs several headless merlin processes from one launcher, for batch work on a server.
+ * <p>Each worker is a {@link LaunchSession} with its own working directory (logs, <code>merlin.workdir</code>),
+ * a share of the host memory for the heap and, on Linux, its own set of CPUs. The workers share the installation,
+ * the precomputed classpath and the class data sharing archive, so the housekeeping of the installation
+ * (deletions, plugin install, lib pruning, log retention) is done once by the pool, before the workers start and
+ * after they all exit.
+ * <p>With a job queue each worker takes a job (passed in <code>MERLIN_JOB</code>) before starting merlin, restarts it
+ * with the same job when asked to, and stops when the queue is empty. Without a queue each worker runs like the
+ * standalone launcher.
+ */
+final class WorkerPool {
+
+	private static final LauncherLog logger = LauncherLog.get(WorkerPool.class);
+
+	// Properties of main.conf
+	public static final String WORKERS = "workers";
+	public static final String WORKERSDIR = "workersDir";
+	public static final String JOBQUEUE = "jobQueue";
+	public static final String WORKERCPUPINNING = "workerCpuPinning";
+	public static final String WORKERJAVAPARAM = "WORKER_JAVA_PARAM";
+
+	private static final String DEFAULT_WORKERS_DIR = "workers";
+	private static final List<String> TASKSET = Arrays.asList("/usr/bin/taskset", "/bin/taskset");
+
+	private final String mainConfFile;
+
+	public WorkerPool(String mainConfFile){
+		this.mainConfFile = mainConfFile;
+	}
+
+	/** @return true if the configuration asks for more than one worker */
+	public static boolean isEnabled(LaunchConfiguration config){
+		return getWorkers(config) > 1;
+	}
+
+	private static int getWorkers(LaunchConfiguration config){
+		String value = config.getProperty(WORKERS);
+		try {
+			if(value != null)
+				return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("property.invalid", "name", WORKERS, "value", value);
+		}
+		return 1;
+	}
+
+	/**
+	 * Run the workers until they all stop
+	 * @return 0 if every worker ended normally, otherwise the exit code of the first one that did not
+	 */
+	public int run() throws IOException, InterruptedException{
+		LaunchConfiguration config = LaunchConfiguration.get(mainConfFile);
+		int workers = getWorkers(config);
+
+		String directory = config.getProperty(WORKERSDIR);
+		File workersDir = new File(directory == null ? DEFAULT_WORKERS_DIR : directory);
+		JobQueue queue = config.getProperty(JOBQUEUE) == null ? null : new JobQueue(new File(config.getProperty(JOBQUEUE)));
+
+		String taskset = null;
+		if(PropertiesManager.detectOS().equals(OSystem.LINUX) && !"false".equalsIgnoreCase(config.getProperty(WORKERCPUPINNING)))
+			for (String path : TASKSET)
+				if(new File(path).canExecute())
+					taskset = path;
+
+		logger.info("pool.start", "workers", workers, "folder", workersDir.getPath(), "jobs", queue);
+
+		new LaunchSession(mainConfFile).runHousekeeping();
+
+		final int[] exitCodes = new int[workers];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers; i++) {
+			final int index = i;
+			final Worker worker = new Worker(i + 1, new File(workersDir, "worker-" + (i + 1)), workers, getCpus(taskset, i, workers), queue);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						exitCodes[index] = new LaunchSession(mainConfFile, worker).run();
+					}
+					catch (IOException | InterruptedException e) {
+						logger.error("worker.failed", e, "worker", worker.getId());
+						exitCodes[index] = 1;
+					}
+				}
+			}, "merlin-worker-" + worker.getId());
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		// Plugins staged and files marked for deletion by the workers
+		new LaunchSession(mainConfFile).runHousekeeping();
+
+		for (int exitCode : exitCodes)
+			if(exitCode != 0)
+				return exitCode;
+		return 0;
+	}
+
+	/**
+	 * CPUs of a worker, an even share of the CPUs of the launcher
+	 * @return the command prefix that pins the worker, empty if it is not pinned
+	 */
+	private static List<String> getCpus(String taskset, int index, int workers){
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int share = cpus / workers;
+		if(taskset == null || share < 1)
+			return Collections.emptyList();
+
+		int first = index * share;
+		return Arrays.asList(taskset, "-c", first + "-" + (first + share - 1));
+	}
+
+	/** Settings of one worker of the pool */
+	static final class Worker {
+
+		private final int id;
+		private final File workDir;
+		private final int instances;
+		private final List<String> commandPrefix;
+		private final JobQueue jobQueue;
+
+		Worker(int id, File workDir, int instances, List<String> commandPrefix, JobQueue jobQueue){
+			this.id = id;
+			this.workDir = workDir;
+			this.instances = instances;
+			this.commandPrefix = commandPrefix;
+			this.jobQueue = jobQueue;
+			workDir.mkdirs();
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public File getWorkDir() {
+			return workDir;
+		}
+
+		/** @return number of workers sharing the host */
+		public int getInstances() {
+			return instances;
+		}
+
+		/** @return the command that pins the process to the CPUs of the worker, empty if not pinned */
+		public List<String> getCommandPrefix() {
+			return commandPrefix;
+		}
+
+		/** @return the queue of jobs, null if the workers do not take jobs */
+		public JobQueue getJobQueue() {
+			return jobQueue;
+		}
+
+		/**
+		 * JVM arguments of the worker: headless, its identity and working directory, and the WORKER_JAVA_PARAM
+		 * and WORKER_JAVA_PARAM_&lt;id&gt; properties
+		 */
+		public List<String> getJavaArgs(LaunchConfiguration config){
+			List<String> args = new ArrayList<String>();
+			args.add("-Djava.awt.headless=true");
+			args.add("-Dmerlin.worker=" + id);
+			args.add("-Dmerlin.workdir=" + workDir.getAbsolutePath());
+			args.addAll(config.getValues(WORKERJAVAPARAM));
+			args.addAll(config.getValues(WORKERJAVAPARAM + "_" + id));
+			return args;
+		}
+
+		/**
+		 * Set the environment of the merlin process of the worker
+		 * @param pb - builder of the merlin process
+		 * @param job - job of the worker, null if none
+		 */
+		public void setEnvironment(ProcessBuilder pb, String job){
+			pb.environment().put("MERLIN_WORKER", String.valueOf(id));
+			pb.environment().put("MERLIN_WORKDIR", workDir.getAbsolutePath());
+			if(job != null)
+				pb.environment().put("MERLIN_JOB", job);
+		}
+	}
+}